@@ -0,0 +1,162 @@
+//////////////////////////////////////////////////////////////////////////////
+//	Copyright 2011 Alex Leffelman
+//	
+//	Licensed under the Apache License, Version 2.0 (the "License");
+//	you may not use this file except in compliance with the License.
+//	You may obtain a copy of the License at
+//	
+//	http://www.apache.org/licenses/LICENSE-2.0
+//	
+//	Unless required by applicable law or agreed to in writing, software
+//	distributed under the License is distributed on an "AS IS" BASIS,
+//	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//	See the License for the specific language governing permissions and
+//	limitations under the License.
+//////////////////////////////////////////////////////////////////////////////
+
+
+package com.leff.midi;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import com.leff.midi.event.MidiEvent;
+
+/**
+ * Iterates over the events of several tracks in global tick order. Events on
+ * the same tick come in track order, and each track's own order is kept. The
+ * next event of every track is held in a binary heap, so each step costs
+ * O(log tracks).
+ */
+public class MergedEventIterator implements Iterator<MidiEvent>
+{
+    private final List<Iterator<MidiEvent>> mIterators;
+    private final MidiEvent[] mHeads;
+
+    // Indices of the tracks that still have events, as a min-heap on their
+    // head event's tick
+    private final int[] mHeap;
+    private int mHeapSize;
+
+    private int mTrackIndex;
+
+    public MergedEventIterator(List<MidiTrack> tracks)
+    {
+        int count = tracks.size();
+
+        mIterators = new ArrayList<Iterator<MidiEvent>>(count);
+        mHeads = new MidiEvent[count];
+        mHeap = new int[count];
+        mHeapSize = 0;
+        mTrackIndex = -1;
+
+        for(int i = 0; i < count; i++)
+        {
+            Iterator<MidiEvent> it = tracks.get(i).getEvents().iterator();
+            mIterators.add(it);
+
+            if(it.hasNext())
+            {
+                mHeads[i] = it.next();
+                mHeap[mHeapSize++] = i;
+            }
+        }
+
+        for(int i = mHeapSize / 2 - 1; i >= 0; i--)
+        {
+            siftDown(i);
+        }
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        return mHeapSize > 0;
+    }
+
+    @Override
+    public MidiEvent next()
+    {
+        if(mHeapSize == 0)
+        {
+            throw new NoSuchElementException();
+        }
+
+        int track = mHeap[0];
+        MidiEvent E = mHeads[track];
+
+        Iterator<MidiEvent> it = mIterators.get(track);
+        if(it.hasNext())
+        {
+            mHeads[track] = it.next();
+        }
+        else
+        {
+            mHeads[track] = null;
+            mHeap[0] = mHeap[--mHeapSize];
+        }
+        siftDown(0);
+
+        mTrackIndex = track;
+        return E;
+    }
+
+    /**
+     * @return the event the next call to {@link #next()} will return, or null
+     *         if there are no more events
+     */
+    public MidiEvent peek()
+    {
+        return mHeapSize > 0 ? mHeads[mHeap[0]] : null;
+    }
+
+    /**
+     * @return the index of the track the last event returned by
+     *         {@link #next()} came from, or -1 before the first call
+     */
+    public int getTrackIndex()
+    {
+        return mTrackIndex;
+    }
+
+    @Override
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    private boolean before(int trackA, int trackB)
+    {
+        long tickA = mHeads[trackA].getTick();
+        long tickB = mHeads[trackB].getTick();
+        if(tickA != tickB)
+        {
+            return tickA < tickB;
+        }
+        return trackA < trackB;
+    }
+
+    private void siftDown(int pos)
+    {
+        int track = mHeap[pos];
+        int half = mHeapSize / 2;
+
+        while(pos < half)
+        {
+            int child = 2 * pos + 1;
+            if(child + 1 < mHeapSize && before(mHeap[child + 1], mHeap[child]))
+            {
+                child++;
+            }
+            if(!before(mHeap[child], track))
+            {
+                break;
+            }
+            mHeap[pos] = mHeap[child];
+            pos = child;
+        }
+        mHeap[pos] = track;
+    }
+}
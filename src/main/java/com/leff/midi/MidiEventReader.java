@@ -0,0 +1,156 @@
+//////////////////////////////////////////////////////////////////////////////
+//	Copyright 2011 Alex Leffelman
+//	
+//	Licensed under the Apache License, Version 2.0 (the "License");
+//	you may not use this file except in compliance with the License.
+//	You may obtain a copy of the License at
+//	
+//	http://www.apache.org/licenses/LICENSE-2.0
+//	
+//	Unless required by applicable law or agreed to in writing, software
+//	distributed under the License is distributed on an "AS IS" BASIS,
+//	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//	See the License for the specific language governing permissions and
+//	limitations under the License.
+//////////////////////////////////////////////////////////////////////////////
+
+package com.leff.midi;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.leff.midi.event.MidiEvent;
+import com.leff.midi.event.MidiParser;
+import com.leff.midi.event.meta.EndOfTrack;
+import com.leff.midi.util.VariableLengthInt;
+
+/**
+ * Pull-style reader that walks the tracks of a MIDI file one event at a time,
+ * without building MidiTrack objects. Call {@link #next()} to advance, then
+ * query the current event and its position. Events are returned track by
+ * track, in file order, including each track's EndOfTrack.
+ */
+public class MidiEventReader
+{
+    private ByteBuffer mIn;
+    private MidiParser mParser;
+
+    private int mType;
+    private int mTrackCount;
+    private int mResolution;
+
+    private ByteBuffer mChunk;
+    private int mTrackIndex;
+    private long mTick;
+    private long mDelta;
+    private MidiEvent mEvent;
+
+    public MidiEventReader(ByteBuffer in)
+    {
+        mIn = MidiFormat.view(in);
+        mParser = new MidiParser();
+        mTrackIndex = -1;
+
+        readHeader();
+    }
+
+    public static MidiEventReader open(File fileIn) throws FileNotFoundException, IOException
+    {
+        return new MidiEventReader(MidiFile.map(fileIn));
+    }
+
+    public int getType()
+    {
+        return mType;
+    }
+
+    public int getTrackCount()
+    {
+        return mTrackCount;
+    }
+
+    public int getResolution()
+    {
+        return mResolution;
+    }
+
+    /**
+     * Advances to the next event in the file.
+     * 
+     * @return false once every track has been read
+     */
+    public boolean next()
+    {
+        mEvent = null;
+
+        while(mEvent == null)
+        {
+            if(mChunk == null || !mChunk.hasRemaining())
+            {
+                if(!nextChunk())
+                {
+                    return false;
+                }
+                continue;
+            }
+
+            int delta = VariableLengthInt.read(mChunk);
+            mTick += delta;
+            mDelta = delta;
+
+            mEvent = mParser.parseEvent(mTick, delta, mChunk);
+        }
+
+        if(mEvent.getClass().equals(EndOfTrack.class))
+        {
+            mChunk.position(mChunk.limit());
+        }
+        return true;
+    }
+
+    public MidiEvent getEvent()
+    {
+        return mEvent;
+    }
+
+    public int getTrackIndex()
+    {
+        return mTrackIndex;
+    }
+
+    public long getTick()
+    {
+        return mTick;
+    }
+
+    public long getDelta()
+    {
+        return mDelta;
+    }
+
+    private boolean nextChunk()
+    {
+        mChunk = mTrackIndex + 1 < mTrackCount ? MidiFormat.nextTrackChunk(mIn) : null;
+        if(mChunk == null)
+        {
+            return false;
+        }
+
+        mTrackIndex++;
+        mTick = 0;
+        mDelta = 0;
+        mParser.reset();
+        return true;
+    }
+
+    private void readHeader()
+    {
+        MidiFormat.Header header = MidiFormat.readHeader(mIn);
+
+        mType = header.mType;
+        mTrackCount = header.mTrackCount;
+        mResolution = header.mResolution;
+    }
+}
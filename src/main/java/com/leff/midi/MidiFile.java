@@ -17,15 +17,29 @@
 package com.leff.midi;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.List;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.leff.midi.event.ChannelEvent;
+import com.leff.midi.event.MidiEvent;
+import com.leff.midi.event.meta.EndOfTrack;
 import com.leff.midi.util.MidiUtil;
 
 public class MidiFile
@@ -81,6 +95,97 @@ public class MidiFile
         }
     }
 
+    /**
+     * Parses the MThd and MTrk chunks straight out of the buffer, starting at
+     * its current position, without copying the track data. Each track is
+     * only decoded when its events are first requested, so the buffer's
+     * contents must not change in the meantime. The buffer's position and
+     * byte order are left as they were.
+     */
+    public MidiFile(ByteBuffer buffer)
+    {
+        ByteBuffer in = MidiFormat.view(buffer);
+        initFromBuffer(in);
+
+        mTracks = new ArrayList<MidiTrack>();
+        for(int i = 0; i < mTrackCount; i++)
+        {
+            mTracks.add(new MidiTrack(in));
+        }
+    }
+
+    /**
+     * Like {@link #MidiFile(ByteBuffer)}, but the MTrk chunk boundaries are
+     * located first and each track is then decoded as a separate task on the
+     * given executor. Running status never carries over between chunks, so
+     * the tracks are independent of each other.
+     */
+    public MidiFile(ByteBuffer buffer, ExecutorService executor) throws IOException
+    {
+        ByteBuffer in = MidiFormat.view(buffer);
+        initFromBuffer(in);
+
+        List<Future<MidiTrack>> pending = new ArrayList<Future<MidiTrack>>(mTrackCount);
+        for(final ByteBuffer chunk : splitTrackChunks(in))
+        {
+            pending.add(executor.submit(new Callable<MidiTrack>()
+            {
+                public MidiTrack call()
+                {
+                    MidiTrack track = MidiTrack.fromChunkData(chunk);
+                    track.ensureLoaded();
+                    return track;
+                }
+            }));
+        }
+
+        mTracks = awaitAll(pending);
+    }
+
+    /**
+     * Memory-maps the file and parses it in place. This avoids the stream
+     * buffering and per-chunk copies made by {@link #MidiFile(File)}. Tracks
+     * are decoded lazily from the mapping, so the file must not be modified
+     * by anyone else while this MidiFile is in use.
+     */
+    public static MidiFile open(File fileIn) throws FileNotFoundException, IOException
+    {
+        return new MidiFile(map(fileIn));
+    }
+
+    /**
+     * Memory-maps the file and decodes its tracks in parallel on the given
+     * executor.
+     */
+    public static MidiFile open(File fileIn, ExecutorService executor) throws FileNotFoundException, IOException
+    {
+        return new MidiFile(map(fileIn), executor);
+    }
+
+    /**
+     * Reads only the header, the track chunk lengths and the tempo, time
+     * signature, key signature and track name events, without building any
+     * MidiTracks.
+     */
+    public static MidiFileInfo probe(File fileIn) throws FileNotFoundException, IOException
+    {
+        return new MidiFileInfo(map(fileIn));
+    }
+
+    static ByteBuffer map(File fileIn) throws FileNotFoundException, IOException
+    {
+        FileInputStream fin = new FileInputStream(fileIn);
+        try
+        {
+            FileChannel channel = fin.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        finally
+        {
+            fin.close();
+        }
+    }
+
     public void setType(int type)
     {
         if(type < 0)
@@ -140,6 +245,108 @@ public class MidiFile
         return mTracks;
     }
 
+    /**
+     * @return an iterator over the events of all tracks in global tick order.
+     *         The tracks must not be changed while it is in use.
+     */
+    public MergedEventIterator mergedEvents()
+    {
+        return new MergedEventIterator(mTracks);
+    }
+
+    /**
+     * Merges all tracks into a single track and makes this a type 0 file.
+     * EndOfTrack events are dropped, and the new track ends where the longest
+     * track ended. Every other event is kept, even when several tracks hold
+     * the same event on the same tick. The events are moved rather than
+     * copied, so the old tracks should not be used afterwards.
+     */
+    public void toFormat0()
+    {
+        ArrayList<MidiEvent> events = new ArrayList<MidiEvent>();
+        MergedEventIterator it = mergedEvents();
+        while(it.hasNext())
+        {
+            MidiEvent E = it.next();
+            if(!E.getClass().equals(EndOfTrack.class))
+            {
+                events.add(E);
+            }
+        }
+
+        long endTick = getEndTick();
+
+        mTracks.clear();
+        mTracks.add(buildTrack(events, endTick));
+        mTrackCount = 1;
+        mType = 0;
+    }
+
+    /**
+     * Splits the events into a type 1 file. Meta and SysEx events go to the
+     * first track, followed by one track per channel in use, in channel
+     * order. EndOfTrack events are dropped, and every new track ends where
+     * the longest track ended. Every other event is kept, even when several
+     * tracks hold the same event on the same tick. The events are moved
+     * rather than copied, so the old tracks should not be used afterwards.
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    public void toFormat1()
+    {
+        ArrayList<MidiEvent> meta = new ArrayList<MidiEvent>();
+        ArrayList<MidiEvent>[] channels = new ArrayList[16];
+
+        MergedEventIterator it = mergedEvents();
+        while(it.hasNext())
+        {
+            MidiEvent E = it.next();
+            if(E instanceof ChannelEvent)
+            {
+                int channel = ((ChannelEvent) E).getChannel();
+                if(channels[channel] == null)
+                {
+                    channels[channel] = new ArrayList<MidiEvent>();
+                }
+                channels[channel].add(E);
+            }
+            else if(!E.getClass().equals(EndOfTrack.class))
+            {
+                meta.add(E);
+            }
+        }
+
+        long endTick = getEndTick();
+
+        mTracks.clear();
+        mTracks.add(buildTrack(meta, endTick));
+        for(ArrayList<MidiEvent> events : channels)
+        {
+            if(events != null)
+            {
+                mTracks.add(buildTrack(events, endTick));
+            }
+        }
+        mTrackCount = mTracks.size();
+        mType = 1;
+    }
+
+    private long getEndTick()
+    {
+        long endTick = 0;
+        for(MidiTrack T : mTracks)
+        {
+            endTick = Math.max(endTick, T.getEndTick());
+        }
+        return endTick;
+    }
+
+    private static MidiTrack buildTrack(List<MidiEvent> events, long endTick)
+    {
+        MidiTrack T = MidiTrack.fromTickOrder(events);
+        T.setEndOfTrackDelta(Math.max(endTick - T.getLengthInTicks(), 0));
+        return T;
+    }
+
     public void addTrack(MidiTrack T)
     {
         addTrack(T, mTracks.size());
@@ -175,7 +382,14 @@ public class MidiFile
 
     public void writeToFile(File outFile) throws FileNotFoundException, IOException
     {
-        FileOutputStream fout = new FileOutputStream(outFile);
+        // Tracks may still be backed by a mapping of the very file that's
+        // about to be truncated, so decode them all first.
+        for(MidiTrack T : mTracks)
+        {
+            T.ensureLoaded();
+        }
+
+        OutputStream fout = new BufferedOutputStream(new FileOutputStream(outFile));
 
         fout.write(IDENTIFIER);
         fout.write(MidiUtil.intToBytes(6, 4));
@@ -192,19 +406,209 @@ public class MidiFile
         fout.close();
     }
 
+    /**
+     * Encodes every track into its own buffer as a separate task on the given
+     * executor, then writes the header and all of the track buffers with a
+     * single gathering write.
+     */
+    public void writeToFile(File outFile, ExecutorService executor) throws FileNotFoundException, IOException
+    {
+        List<Future<ByteBuffer>> pending = new ArrayList<Future<ByteBuffer>>(mTracks.size());
+        for(final MidiTrack T : mTracks)
+        {
+            pending.add(executor.submit(new Callable<ByteBuffer>()
+            {
+                public ByteBuffer call()
+                {
+                    ByteBuffer buffer = acquireBuffer(T.prepareToWrite());
+                    try
+                    {
+                        T.writeToBuffer(buffer);
+                    }
+                    catch(RuntimeException e)
+                    {
+                        releaseBuffer(buffer);
+                        throw e;
+                    }
+                    buffer.flip();
+                    return buffer;
+                }
+            }));
+        }
+
+        ByteBuffer[] buffers = new ByteBuffer[mTracks.size() + 1];
+
+        buffers[0] = ByteBuffer.allocate(HEADER_SIZE);
+        buffers[0].put(IDENTIFIER);
+        buffers[0].putInt(6);
+        buffers[0].putShort((short) mType);
+        buffers[0].putShort((short) mTrackCount);
+        buffers[0].putShort((short) mResolution);
+        buffers[0].flip();
+
+        try
+        {
+            List<ByteBuffer> encoded = awaitAll(pending);
+            for(int i = 0; i < encoded.size(); i++)
+            {
+                buffers[i + 1] = encoded.get(i);
+            }
+
+            FileOutputStream fout = new FileOutputStream(outFile);
+            try
+            {
+                FileChannel channel = fout.getChannel();
+                while(buffers[buffers.length - 1].hasRemaining())
+                {
+                    channel.write(buffers);
+                }
+            }
+            finally
+            {
+                fout.close();
+            }
+        }
+        finally
+        {
+            collectFinished(pending, buffers);
+            for(int i = 1; i < buffers.length; i++)
+            {
+                if(buffers[i] != null)
+                {
+                    releaseBuffer(buffers[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Fills in the buffers of the encode tasks that finished but weren't
+     * collected because another task or the write failed, so that they can
+     * go back to the pool. Tasks still running are cancelled; their buffers
+     * are left to the garbage collector.
+     */
+    private static void collectFinished(List<Future<ByteBuffer>> pending, ByteBuffer[] buffers)
+    {
+        for(int i = 0; i < pending.size(); i++)
+        {
+            Future<ByteBuffer> result = pending.get(i);
+            if(buffers[i + 1] != null || result.cancel(true))
+            {
+                continue;
+            }
+
+            try
+            {
+                buffers[i + 1] = result.get();
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            catch(ExecutionException e)
+            {
+                // The task released its own buffer
+            }
+            catch(CancellationException e)
+            {
+                // Cancelled by awaitAll()
+            }
+        }
+    }
+
+    private static <T> List<T> awaitAll(List<Future<T>> pending) throws IOException
+    {
+        List<T> results = new ArrayList<T>(pending.size());
+        try
+        {
+            for(Future<T> result : pending)
+            {
+                results.add(result.get());
+            }
+        }
+        catch(InterruptedException e)
+        {
+            for(Future<T> result : pending)
+            {
+                result.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for track tasks");
+        }
+        catch(ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if(cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            if(cause instanceof Error)
+            {
+                throw (Error) cause;
+            }
+            IOException failure = new IOException("Track task failed: " + cause);
+            failure.initCause(cause);
+            throw failure;
+        }
+        return results;
+    }
+
+    // Direct buffers are costly to allocate, so a few are kept around for
+    // reuse between writes. Large ones aren't: they would pin off-heap memory
+    // for the life of the process after a single big file was saved.
+    private static final int BUFFER_POOL_SIZE = 16;
+    private static final int MAX_POOLED_BUFFER_SIZE = 256 * 1024;
+    private static final ConcurrentLinkedQueue<ByteBuffer> sBufferPool = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    private static ByteBuffer acquireBuffer(int size)
+    {
+        ByteBuffer buffer = sBufferPool.poll();
+        if(buffer == null || buffer.capacity() < size)
+        {
+            buffer = ByteBuffer.allocateDirect(size);
+        }
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    private static void releaseBuffer(ByteBuffer buffer)
+    {
+        if(buffer.capacity() <= MAX_POOLED_BUFFER_SIZE && sBufferPool.size() < BUFFER_POOL_SIZE)
+        {
+            sBufferPool.offer(buffer);
+        }
+    }
+
     private void initFromBuffer(byte[] buffer)
     {
-        if(!MidiUtil.bytesEqual(buffer, IDENTIFIER, 0, 4))
+        initFromBuffer(ByteBuffer.wrap(buffer));
+    }
+
+    /**
+     * @return the data of the next mTrackCount chunks. Missing chunks at the
+     *         end of the buffer are null.
+     */
+    private List<ByteBuffer> splitTrackChunks(ByteBuffer in)
+    {
+        List<ByteBuffer> chunks = new ArrayList<ByteBuffer>(mTrackCount);
+        for(int i = 0; i < mTrackCount; i++)
+        {
+            chunks.add(MidiFormat.nextTrackChunk(in));
+        }
+        return chunks;
+    }
+
+    private void initFromBuffer(ByteBuffer in)
+    {
+        MidiFormat.Header header = MidiFormat.readHeader(in);
+        if(!header.mFound)
         {
             System.out.println("File identifier not MThd. Exiting");
-            mType = 0;
-            mTrackCount = 0;
-            mResolution = DEFAULT_RESOLUTION;
-            return;
         }
 
-        mType = MidiUtil.bytesToInt(buffer, 8, 2);
-        mTrackCount = MidiUtil.bytesToInt(buffer, 10, 2);
-        mResolution = MidiUtil.bytesToInt(buffer, 12, 2);
+        mType = header.mType;
+        mTrackCount = header.mTrackCount;
+        mResolution = header.mResolution;
     }
 }
@@ -0,0 +1,220 @@
+//////////////////////////////////////////////////////////////////////////////
+//	Copyright 2011 Alex Leffelman
+//	
+//	Licensed under the Apache License, Version 2.0 (the "License");
+//	you may not use this file except in compliance with the License.
+//	You may obtain a copy of the License at
+//	
+//	http://www.apache.org/licenses/LICENSE-2.0
+//	
+//	Unless required by applicable law or agreed to in writing, software
+//	distributed under the License is distributed on an "AS IS" BASIS,
+//	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//	See the License for the specific language governing permissions and
+//	limitations under the License.
+//////////////////////////////////////////////////////////////////////////////
+
+package com.leff.midi;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.leff.midi.event.meta.KeySignature;
+import com.leff.midi.event.meta.MetaEvent;
+import com.leff.midi.event.meta.Tempo;
+import com.leff.midi.event.meta.TimeSignature;
+import com.leff.midi.event.meta.TrackName;
+import com.leff.midi.util.MidiUtil;
+import com.leff.midi.util.VariableLengthInt;
+
+/**
+ * Summary of a MIDI file produced by {@link MidiFile#probe(java.io.File)}: the
+ * header fields, the length of each MTrk chunk, and the tempo, time signature,
+ * key signature and track name events. Every other event is skipped over by
+ * its length without being decoded.
+ */
+public class MidiFileInfo
+{
+    private int mType;
+    private int mTrackCount;
+    private int mResolution;
+
+    private int[] mTrackLengths;
+    private TrackName[] mTrackNames;
+
+    private List<Tempo> mTempos;
+    private List<TimeSignature> mTimeSignatures;
+    private List<KeySignature> mKeySignatures;
+
+    public MidiFileInfo(ByteBuffer buffer)
+    {
+        ByteBuffer in = MidiFormat.view(buffer);
+
+        mTempos = new ArrayList<Tempo>();
+        mTimeSignatures = new ArrayList<TimeSignature>();
+        mKeySignatures = new ArrayList<KeySignature>();
+
+        readHeader(in);
+
+        mTrackLengths = new int[mTrackCount];
+        mTrackNames = new TrackName[mTrackCount];
+
+        for(int i = 0; i < mTrackCount; i++)
+        {
+            ByteBuffer chunk = MidiFormat.nextTrackChunk(in);
+            if(chunk == null)
+            {
+                break;
+            }
+
+            mTrackLengths[i] = chunk.remaining();
+            scanTrack(i, chunk);
+        }
+    }
+
+    public int getType()
+    {
+        return mType;
+    }
+
+    public int getTrackCount()
+    {
+        return mTrackCount;
+    }
+
+    public int getResolution()
+    {
+        return mResolution;
+    }
+
+    /**
+     * @return the byte length of each track's chunk data. That is the length
+     *         stored in the chunk header, cut short if the chunk runs past the
+     *         end of the buffer. A chunk that isn't an MTrk is skipped and
+     *         reports 0, as do tracks missing from the end of the buffer.
+     */
+    public int[] getTrackLengths()
+    {
+        return mTrackLengths;
+    }
+
+    /**
+     * @return the first TrackName of each track, or null for tracks without
+     *         one
+     */
+    public TrackName[] getTrackNames()
+    {
+        return mTrackNames;
+    }
+
+    public List<Tempo> getTempos()
+    {
+        return mTempos;
+    }
+
+    public List<TimeSignature> getTimeSignatures()
+    {
+        return mTimeSignatures;
+    }
+
+    public List<KeySignature> getKeySignatures()
+    {
+        return mKeySignatures;
+    }
+
+    private void scanTrack(int track, ByteBuffer in)
+    {
+        long tick = 0;
+        int runningStatus = 0;
+
+        while(in.hasRemaining())
+        {
+            int delta = VariableLengthInt.read(in);
+            tick += delta;
+
+            if(!in.hasRemaining())
+            {
+                break;
+            }
+
+            int status = in.get() & 0xFF;
+            if(status < 0x80)
+            {
+                // Running status; this byte was the first data byte
+                if(runningStatus == 0)
+                {
+                    continue;
+                }
+                skip(in, MidiFormat.channelDataLength(runningStatus) - 1);
+            }
+            else if(status < 0xF0)
+            {
+                runningStatus = status;
+                skip(in, MidiFormat.channelDataLength(status));
+            }
+            else if(status == 0xFF)
+            {
+                runningStatus = 0;
+
+                int start = in.position();
+                int type = MidiUtil.read(in);
+                int length = VariableLengthInt.read(in);
+
+                if(type == MetaEvent.END_OF_TRACK)
+                {
+                    break;
+                }
+
+                if(type == MetaEvent.TEMPO || type == MetaEvent.TIME_SIGNATURE || type == MetaEvent.KEY_SIGNATURE || type == MetaEvent.TRACK_NAME)
+                {
+                    in.position(start);
+                    collect(track, MetaEvent.parseMetaEvent(tick, delta, in));
+                }
+                else
+                {
+                    skip(in, length);
+                }
+            }
+            else if(status == 0xF0 || status == 0xF7)
+            {
+                runningStatus = 0;
+                skip(in, VariableLengthInt.read(in));
+            }
+        }
+    }
+
+    private void collect(int track, MetaEvent E)
+    {
+        if(E instanceof Tempo)
+        {
+            mTempos.add((Tempo) E);
+        }
+        else if(E instanceof TimeSignature)
+        {
+            mTimeSignatures.add((TimeSignature) E);
+        }
+        else if(E instanceof KeySignature)
+        {
+            mKeySignatures.add((KeySignature) E);
+        }
+        else if(E instanceof TrackName && mTrackNames[track] == null)
+        {
+            mTrackNames[track] = (TrackName) E;
+        }
+    }
+
+    private void readHeader(ByteBuffer in)
+    {
+        MidiFormat.Header header = MidiFormat.readHeader(in);
+
+        mType = header.mType;
+        mTrackCount = header.mTrackCount;
+        mResolution = header.mResolution;
+    }
+
+    private static void skip(ByteBuffer in, int count)
+    {
+        in.position(Math.min(in.position() + count, in.limit()));
+    }
+}
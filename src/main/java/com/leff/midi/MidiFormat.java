@@ -0,0 +1,154 @@
+//////////////////////////////////////////////////////////////////////////////
+//	Copyright 2011 Alex Leffelman
+//	
+//	Licensed under the Apache License, Version 2.0 (the "License");
+//	you may not use this file except in compliance with the License.
+//	You may obtain a copy of the License at
+//	
+//	http://www.apache.org/licenses/LICENSE-2.0
+//	
+//	Unless required by applicable law or agreed to in writing, software
+//	distributed under the License is distributed on an "AS IS" BASIS,
+//	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//	See the License for the specific language governing permissions and
+//	limitations under the License.
+//////////////////////////////////////////////////////////////////////////////
+
+package com.leff.midi;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import com.leff.midi.event.ChannelEvent;
+
+/**
+ * The parts of the Standard MIDI File layout that every reader needs: the
+ * MThd header, the walk over the length-prefixed chunks that follow it, and
+ * the data length of channel events. Multi-byte fields are assembled byte by
+ * byte, so the byte order of the caller's buffer doesn't matter.
+ */
+class MidiFormat
+{
+    public static final int CHUNK_HEADER_SIZE = 8;
+
+    /**
+     * The fields of an MThd chunk
+     */
+    static class Header
+    {
+        // False when there was no MThd chunk and the fields are defaults
+        final boolean mFound;
+        final int mType;
+        final int mTrackCount;
+        final int mResolution;
+
+        Header(boolean found, int type, int trackCount, int resolution)
+        {
+            mFound = found;
+            mType = type;
+            mTrackCount = trackCount;
+            mResolution = resolution;
+        }
+    }
+
+    /**
+     * @return a view of the buffer with its own position and big-endian byte
+     *         order, so that parsing leaves the caller's buffer untouched
+     */
+    static ByteBuffer view(ByteBuffer in)
+    {
+        return in.duplicate().order(ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * Reads the MThd chunk at the buffer's position and moves past it. A
+     * buffer that doesn't start with one reads as an empty type 0 file, with
+     * {@link Header#mFound} false.
+     */
+    static Header readHeader(ByteBuffer in)
+    {
+        int start = in.position();
+        if(in.remaining() < MidiFile.HEADER_SIZE || !identifierMatches(in, start, MidiFile.IDENTIFIER))
+        {
+            return new Header(false, 0, 0, MidiFile.DEFAULT_RESOLUTION);
+        }
+
+        Header header = new Header(true, readShort(in, start + 8), readShort(in, start + 10), readShort(in, start + 12));
+        in.position(start + MidiFile.HEADER_SIZE);
+        return header;
+    }
+
+    /**
+     * Reads the chunk at the buffer's position and moves past it. A chunk
+     * that isn't an MTrk is skipped by its length, the same as a track, and
+     * comes back empty. A length that runs past the end of the buffer is cut
+     * short.
+     * 
+     * @return the chunk's data, or null if there isn't a whole chunk header
+     *         left
+     */
+    static ByteBuffer nextTrackChunk(ByteBuffer in)
+    {
+        if(in.remaining() < CHUNK_HEADER_SIZE)
+        {
+            return null;
+        }
+
+        int start = in.position();
+        boolean isTrack = isTrackChunk(in, start);
+        int length = (int) Math.min(readChunkLength(in, start), in.remaining() - CHUNK_HEADER_SIZE);
+
+        in.position(start + CHUNK_HEADER_SIZE);
+        ByteBuffer data = in.slice();
+        data.limit(isTrack ? length : 0);
+        in.position(start + CHUNK_HEADER_SIZE + length);
+        return data;
+    }
+
+    /**
+     * @return whether the chunk header at this index is an MTrk
+     */
+    static boolean isTrackChunk(ByteBuffer in, int index)
+    {
+        return identifierMatches(in, index, MidiTrack.IDENTIFIER);
+    }
+
+    /**
+     * @return the unsigned length field of the chunk header at this index
+     */
+    static long readChunkLength(ByteBuffer in, int index)
+    {
+        long length = 0;
+        for(int i = 4; i < CHUNK_HEADER_SIZE; i++)
+        {
+            length = (length << 8) | (in.get(index + i) & 0xFF);
+        }
+        return length;
+    }
+
+    /**
+     * @return the number of data bytes after a channel event's status byte
+     */
+    static int channelDataLength(int status)
+    {
+        int type = status >> 4;
+        return type == ChannelEvent.PROGRAM_CHANGE || type == ChannelEvent.CHANNEL_AFTERTOUCH ? 1 : 2;
+    }
+
+    private static boolean identifierMatches(ByteBuffer in, int index, byte[] identifier)
+    {
+        for(int i = 0; i < identifier.length; i++)
+        {
+            if(in.get(index + i) != identifier[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int readShort(ByteBuffer in, int index)
+    {
+        return ((in.get(index) & 0xFF) << 8) | (in.get(index + 1) & 0xFF);
+    }
+}
@@ -16,19 +16,31 @@
 
 package com.leff.midi;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.reflect.Method;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.SortedSet;
 import java.util.TreeSet;
 
 import com.leff.midi.event.MidiEvent;
+import com.leff.midi.event.MidiParser;
 import com.leff.midi.event.NoteOn;
 import com.leff.midi.event.meta.EndOfTrack;
 import com.leff.midi.event.meta.Tempo;
 import com.leff.midi.event.meta.TimeSignature;
+import com.leff.midi.util.MidiEventFilter;
 import com.leff.midi.util.MidiUtil;
 import com.leff.midi.util.VariableLengthInt;
 
@@ -38,13 +50,47 @@ public class MidiTrack
 
     public static final byte[] IDENTIFIER = { 'M', 'T', 'r', 'k' };
 
+    // floor(), ceiling() and lower() are not supported on Android before API
+    // Level 9 (Gingerbread). They are looked up once; null means a linear
+    // search is needed instead.
+    private static final Method sFloor = findTreeSetMethod("floor");
+    private static final Method sCeiling = findTreeSetMethod("ceiling");
+    private static final Method sLower = findTreeSetMethod("lower");
+
+    private static final Comparator<MidiEvent> TICK_ORDER = new Comparator<MidiEvent>()
+    {
+        @Override
+        public int compare(MidiEvent a, MidiEvent b)
+        {
+            return a.getTick() < b.getTick() ? -1 : (a.getTick() == b.getTick() ? 0 : 1);
+        }
+    };
+
     private int mSize;
     private boolean mSizeNeedsRecalculating;
+    // mSize was read from a chunk header and still includes the EndOfTrack
+    // event, so it can't be adjusted incrementally
+    private boolean mSizeIsFromChunk;
+    private boolean mDeferDeltas;
+    private boolean mDeltasDirty;
     private boolean mClosed;
     private long mEndOfTrackDelta;
 
     private TreeSet<MidiEvent> mEvents;
 
+    // Raw chunk data that has not been decoded into mEvents yet
+    private volatile ByteBuffer mData;
+
+    // Per-type snapshots of mEvents for tick range queries. They are built
+    // on first use and dropped whenever the track changes.
+    private HashMap<Class<?>, EventIndex> mIndexes;
+    private int mIndexedModCount;
+    private int mIndexedCount;
+
+    // Bumped by every change to mEvents, including changes made through the
+    // set returned by getEvents()
+    private int mModCount;
+
     public static MidiTrack createTempoTrack()
     {
         MidiTrack T = new MidiTrack();
@@ -57,7 +103,7 @@ public class MidiTrack
 
     public MidiTrack()
     {
-        mEvents = new TreeSet<MidiEvent>();
+        mEvents = new EventSet();
         mSize = 0;
         mSizeNeedsRecalculating = false;
         mClosed = false;
@@ -68,36 +114,153 @@ public class MidiTrack
     {
         this();
 
-        byte[] buffer = new byte[4];
-        in.read(buffer);
+        ByteBuffer header = ByteBuffer.wrap(new byte[MidiFormat.CHUNK_HEADER_SIZE]);
+        in.read(header.array());
 
-        if(!MidiUtil.bytesEqual(buffer, IDENTIFIER, 0, 4))
+        long length = MidiFormat.readChunkLength(header, 0);
+        if(!MidiFormat.isTrackChunk(header, 0))
         {
+            // Skip the chunk, like the ByteBuffer readers do
             System.err.println("Track identifier did not match MTrk!");
+            while(length > 0 && in.read() >= 0)
+            {
+                length -= 1 + in.skip(length - 1);
+            }
             return;
         }
 
+        mSize = (int) length;
+        mSizeIsFromChunk = true;
+
+        byte[] buffer = new byte[mSize];
         in.read(buffer);
-        mSize = MidiUtil.bytesToInt(buffer, 0, 4);
-        
-        buffer = new byte[mSize];
-        in.read(buffer);
-        
-        this.readTrackData(buffer);
+
+        mData = ByteBuffer.wrap(buffer);
+    }
+
+    /**
+     * Reads one MTrk chunk starting at the buffer's current position, and
+     * leaves the buffer positioned just past the end of the chunk. The events
+     * are decoded directly from the buffer the first time they are needed, so
+     * its contents must not change until then.
+     */
+    public MidiTrack(ByteBuffer in)
+    {
+        this();
+
+        boolean isTrack = in.remaining() >= MidiFormat.CHUNK_HEADER_SIZE && MidiFormat.isTrackChunk(in, in.position());
+        ByteBuffer data = MidiFormat.nextTrackChunk(in);
+        if(!isTrack)
+        {
+            // Skipped, like the stream constructor does
+            System.err.println("Track identifier did not match MTrk!");
+            return;
+        }
+        setChunkData(data);
+    }
+
+    /**
+     * Creates a track from the data of a chunk found by
+     * MidiFormat.nextTrackChunk(), which may be null.
+     */
+    static MidiTrack fromChunkData(ByteBuffer data)
+    {
+        MidiTrack T = new MidiTrack();
+        if(data != null)
+        {
+            T.setChunkData(data);
+        }
+        return T;
+    }
+
+    /**
+     * Builds a track from events that are already in tick order. Unlike
+     * {@link #insertEvents(Collection)}, events that compare equal are all
+     * kept, so that merging tracks doesn't lose notes or SysEx messages that
+     * several tracks happen to share.
+     */
+    static MidiTrack fromTickOrder(List<MidiEvent> events)
+    {
+        ArrayList<MidiEvent> sorted = new ArrayList<MidiEvent>(events.size());
+        long lastTick = 0;
+        for(MidiEvent E : events)
+        {
+            // compareTo() looks at delta times, so give the event the delta
+            // it will have in the new track before placing it
+            E.setDelta(E.getTick() - lastTick);
+            lastTick = E.getTick();
+
+            int i = sorted.size();
+            while(i > 0 && E.compareTo(sorted.get(i - 1)) < 0)
+            {
+                i--;
+            }
+            sorted.add(i, E);
+        }
+
+        MidiTrack T = new MidiTrack();
+        T.replaceEvents(sorted);
+        return T;
     }
-    
-    private void readTrackData(byte[] data) throws IOException
+
+    private void setChunkData(ByteBuffer data)
     {
-        InputStream in = new ByteArrayInputStream(data);
+        if(!data.hasRemaining())
+        {
+            return;
+        }
 
+        mSize = data.remaining();
+        mSizeIsFromChunk = true;
+        mData = data;
+    }
+
+    private static Method findTreeSetMethod(String name)
+    {
+        try
+        {
+            return TreeSet.class.getMethod(name, Object.class);
+        }
+        catch(Exception e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Decodes the track's chunk data if that hasn't happened yet. Called by
+     * every method that needs the events themselves.
+     */
+    void ensureLoaded()
+    {
+        if(mData == null)
+        {
+            return;
+        }
+
+        synchronized(this)
+        {
+            if(mData != null)
+            {
+                readTrackData(mData);
+                mData = null;
+            }
+        }
+    }
+
+    private void readTrackData(ByteBuffer in)
+    {
+        MidiParser parser = new MidiParser();
         long totalTicks = 0;
-        
-        while(in.available() > 0)
+
+        ArrayList<MidiEvent> events = new ArrayList<MidiEvent>();
+
+        while(in.hasRemaining())
         {
-            VariableLengthInt delta = new VariableLengthInt(in);
-            totalTicks += delta.getValue();
+            int delta = VariableLengthInt.read(in);
+            totalTicks += delta;
 
-            MidiEvent E = MidiEvent.parseEvent(totalTicks, delta.getValue(), in);
+            MidiEvent E = parser.parseEvent(totalTicks, delta, in);
             if(E == null)
             {
                 System.out.println("Event skipped!");
@@ -117,17 +280,369 @@ public class MidiTrack
                 mEndOfTrackDelta = E.getDelta();
                 break;
             }
-            mEvents.add(E);
+            addInOrder(events, E);
+        }
+
+        setSortedEvents(events);
+    }
+
+    /**
+     * Adds an event to a list that is kept sorted the same way as mEvents.
+     * Events usually arrive in tick order, so at most the few events already
+     * on the same tick are looked at. Like TreeSet.add(), an event that
+     * compares equal to one already present is dropped.
+     * 
+     * @return the index the event was added at, or -1 if it was dropped
+     */
+    private static int addInOrder(List<MidiEvent> events, MidiEvent E)
+    {
+        int i = events.size();
+        while(i > 0 && E.compareTo(events.get(i - 1)) < 0)
+        {
+            i--;
+        }
+
+        if(i > 0 && E.compareTo(events.get(i - 1)) == 0)
+        {
+            return -1;
+        }
+        events.add(i, E);
+        return i;
+    }
+
+    private static void appendWithDelta(List<MidiEvent> events, MidiEvent E)
+    {
+        int n = events.size();
+        E.setDelta(n > 0 ? E.getTick() - events.get(n - 1).getTick() : E.getTick());
+        events.add(E);
+    }
+
+    /**
+     * Replaces the track's events with a sorted list, recomputing every delta
+     * time and the track size in the same pass.
+     */
+    private void replaceEvents(List<MidiEvent> sorted)
+    {
+        long lastTick = 0;
+        MidiEvent last = null;
+        int size = 0;
+        for(MidiEvent E : sorted)
+        {
+            E.setDelta(E.getTick() - lastTick);
+            lastTick = E.getTick();
+
+            size += sizeAfter(E, last);
+            last = E;
+        }
+
+        setSortedEvents(sorted);
+        mSize = size;
+        mSizeNeedsRecalculating = false;
+        mSizeIsFromChunk = false;
+        mDeltasDirty = false;
+    }
+
+    /**
+     * Replaces the track's events with a list that is already sorted and free
+     * of duplicates. TreeSet builds itself from a SortedSet in linear time,
+     * without any comparisons or rebalancing.
+     */
+    private void setSortedEvents(List<MidiEvent> sorted)
+    {
+        mEvents.clear();
+        mEvents.addAll(new SortedListView(sorted));
+    }
+
+    private EventIndex getIndex(Class<?> type)
+    {
+        // The size check catches changes made through the set's views and
+        // the Java 6 methods EventSet can't override
+        if(mIndexes == null || mIndexedModCount != mModCount || mIndexedCount != mEvents.size())
+        {
+            mIndexes = new HashMap<Class<?>, EventIndex>();
+            mIndexedModCount = mModCount;
+            mIndexedCount = mEvents.size();
+        }
+
+        EventIndex index = mIndexes.get(type);
+        if(index == null)
+        {
+            if(type == MidiEvent.class)
+            {
+                index = new EventIndex(mEvents, type);
+            }
+            else
+            {
+                index = new EventIndex(getIndex(MidiEvent.class).asList(), type);
+            }
+            mIndexes.put(type, index);
+        }
+        return index;
+    }
+
+    /**
+     * The events of one type in track order, with their ticks in a parallel
+     * array for binary searching.
+     */
+    private static class EventIndex
+    {
+        private final MidiEvent[] mEvents;
+        private final long[] mTicks;
+
+        public EventIndex(Collection<MidiEvent> events, Class<?> type)
+        {
+            ArrayList<MidiEvent> matches = new ArrayList<MidiEvent>();
+            for(MidiEvent E : events)
+            {
+                if(type.isInstance(E))
+                {
+                    matches.add(E);
+                }
+            }
+
+            mEvents = matches.toArray(new MidiEvent[matches.size()]);
+            mTicks = new long[mEvents.length];
+            for(int i = 0; i < mEvents.length; i++)
+            {
+                mTicks[i] = mEvents[i].getTick();
+            }
+        }
+
+        public List<MidiEvent> asList()
+        {
+            return Arrays.asList(mEvents);
+        }
+
+        // Every event in the index is an instance of the type it was built
+        // for, so the cast is safe.
+        @SuppressWarnings("unchecked")
+        public <T extends MidiEvent> List<T> range(long fromTick, long toTick)
+        {
+            int from = firstIndexAtOrAfter(fromTick);
+            int to = Math.max(from, firstIndexAtOrAfter(toTick));
+
+            List<? extends MidiEvent> range = asList().subList(from, to);
+            return Collections.unmodifiableList((List<T>) range);
+        }
+
+        private int firstIndexAtOrAfter(long tick)
+        {
+            int lo = 0, hi = mTicks.length;
+            while(lo < hi)
+            {
+                int mid = (lo + hi) >>> 1;
+                if(mTicks[mid] < tick)
+                {
+                    lo = mid + 1;
+                }
+                else
+                {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+    }
+
+    /**
+     * A search key that sorts before every event on its tick and compares by
+     * tick alone, so it finds the same place in mEvents no matter how the
+     * events' delta times have changed.
+     */
+    private static class TickProbe extends MidiEvent
+    {
+        public TickProbe(long tick)
+        {
+            super(tick, 0);
+        }
+
+        @Override
+        protected int getEventSize()
+        {
+            return 0;
+        }
+
+        @Override
+        public int compareTo(MidiEvent other)
+        {
+            if(mTick != other.getTick())
+            {
+                return mTick < other.getTick() ? -1 : 1;
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * The track's event set. It bumps mModCount on every change so that
+     * getIndex() notices edits made through getEvents().
+     */
+    private class EventSet extends TreeSet<MidiEvent>
+    {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public boolean add(MidiEvent E)
+        {
+            mModCount++;
+            return super.add(E);
+        }
+
+        @Override
+        public boolean addAll(Collection<? extends MidiEvent> c)
+        {
+            mModCount++;
+            return super.addAll(c);
+        }
+
+        @Override
+        public boolean remove(Object o)
+        {
+            mModCount++;
+            return super.remove(o);
+        }
+
+        @Override
+        public boolean removeAll(Collection<?> c)
+        {
+            mModCount++;
+            return super.removeAll(c);
+        }
+
+        @Override
+        public boolean retainAll(Collection<?> c)
+        {
+            mModCount++;
+            return super.retainAll(c);
+        }
+
+        @Override
+        public void clear()
+        {
+            mModCount++;
+            super.clear();
+        }
+
+        @Override
+        public Iterator<MidiEvent> iterator()
+        {
+            final Iterator<MidiEvent> it = super.iterator();
+            return new Iterator<MidiEvent>()
+            {
+                public boolean hasNext()
+                {
+                    return it.hasNext();
+                }
+
+                public MidiEvent next()
+                {
+                    return it.next();
+                }
+
+                public void remove()
+                {
+                    mModCount++;
+                    it.remove();
+                }
+            };
+        }
+    }
+
+    /**
+     * Presents an already sorted list as a SortedSet so that TreeSet can take
+     * its bulk-build path. Only the methods TreeSet uses for that are
+     * supported.
+     */
+    private static class SortedListView extends AbstractSet<MidiEvent> implements SortedSet<MidiEvent>
+    {
+        private final List<MidiEvent> mList;
+
+        public SortedListView(List<MidiEvent> list)
+        {
+            mList = list;
+        }
+
+        @Override
+        public Iterator<MidiEvent> iterator()
+        {
+            return mList.iterator();
+        }
+
+        @Override
+        public int size()
+        {
+            return mList.size();
+        }
+
+        public Comparator<? super MidiEvent> comparator()
+        {
+            return null;
+        }
+
+        public MidiEvent first()
+        {
+            return mList.get(0);
+        }
+
+        public MidiEvent last()
+        {
+            return mList.get(mList.size() - 1);
+        }
+
+        public SortedSet<MidiEvent> subSet(MidiEvent fromElement, MidiEvent toElement)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public SortedSet<MidiEvent> headSet(MidiEvent toElement)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public SortedSet<MidiEvent> tailSet(MidiEvent fromElement)
+        {
+            throw new UnsupportedOperationException();
         }
     }
 
     public TreeSet<MidiEvent> getEvents()
     {
+        ensureLoaded();
+
+        if(mDeltasDirty)
+        {
+            recalculateSize();
+        }
         return mEvents;
     }
 
+    /**
+     * @return the events with fromTick <= tick < toTick, in track order
+     */
+    public List<MidiEvent> getEvents(long fromTick, long toTick)
+    {
+        return getEvents(MidiEvent.class, fromTick, toTick);
+    }
+
+    /**
+     * Finds the events of a type, including its subclasses, with fromTick <=
+     * tick < toTick. Each type gets a sorted index the first time it is
+     * queried, so later queries take a binary search until the track is next
+     * changed.
+     * 
+     * @return a read-only snapshot of the matching events, in track order
+     */
+    public <T extends MidiEvent> List<T> getEvents(Class<T> type, long fromTick, long toTick)
+    {
+        ensureLoaded();
+
+        return getIndex(type).range(fromTick, toTick);
+    }
+
     public int getEventCount()
     {
+        ensureLoaded();
+
         return mEvents.size();
     }
 
@@ -142,6 +657,8 @@ public class MidiTrack
 
     public long getLengthInTicks()
     {
+        ensureLoaded();
+
         if(mEvents.size() == 0)
         {
             return 0;
@@ -153,14 +670,54 @@ public class MidiTrack
 
     public long getEndOfTrackDelta()
     {
+        ensureLoaded();
+
         return mEndOfTrackDelta;
     }
 
     public void setEndOfTrackDelta(long delta)
     {
+        ensureLoaded();
+
         mEndOfTrackDelta = delta;
     }
 
+    /**
+     * @return the tick the track's EndOfTrack event is on, or will be on once
+     *         the track is closed
+     */
+    long getEndTick()
+    {
+        ensureLoaded();
+
+        long lastTick = mEvents.isEmpty() ? 0 : mEvents.last().getTick();
+        return mClosed ? lastTick : lastTick + mEndOfTrackDelta;
+    }
+
+    /**
+     * When deltas are deferred, inserting or removing an event only updates
+     * the event set. Delta times are recomputed in one pass the next time
+     * they are needed: by getSize(), getEvents() or when the track is written.
+     * This saves work on tracks that go through many edits between writes.
+     * <p>
+     * Events are still sorted with compareTo(), which looks at delta times, so
+     * events on the same tick may end up in a different order than they would
+     * with deltas kept up to date.
+     */
+    public void setDeferDeltas(boolean defer)
+    {
+        if(!defer && mDeltasDirty)
+        {
+            recalculateSize();
+        }
+        mDeferDeltas = defer;
+    }
+
+    public boolean isDeferringDeltas()
+    {
+        return mDeferDeltas;
+    }
+
     public void insertNote(int channel, int pitch, int velocity, long tick, long duration)
     {
 
@@ -168,7 +725,131 @@ public class MidiTrack
         insertEvent(new NoteOn(tick + duration, channel, pitch, 0));
     }
 
-    @SuppressWarnings({ "rawtypes", "unchecked" })
+    /**
+     * Inserts many notes at once through {@link #insertEvents(Collection)}.
+     * The arrays hold one entry per note and must all have the same length.
+     */
+    public void insertNotes(int channel, int[] pitches, int[] velocities, long[] ticks, long[] durations)
+    {
+        int count = pitches.length;
+        if(velocities.length != count || ticks.length != count || durations.length != count)
+        {
+            throw new IllegalArgumentException("Note arrays must all have the same length");
+        }
+
+        ArrayList<MidiEvent> events = new ArrayList<MidiEvent>(count * 2);
+        for(int i = 0; i < count; i++)
+        {
+            events.add(new NoteOn(ticks[i], channel, pitches[i], velocities[i]));
+            events.add(new NoteOn(ticks[i] + durations[i], channel, pitches[i], 0));
+        }
+        insertEvents(events);
+    }
+
+    /**
+     * Inserts a batch of events. The batch is sorted and merged with the
+     * track's events, then every delta time and the track size are recomputed
+     * in one pass. This is much cheaper than calling
+     * {@link #insertEvent(MidiEvent)} for each event of a large batch.
+     * <p>
+     * Every event lands on the same tick either way, but the two only give
+     * the same track when the batch holds ChannelEvents with delta times of
+     * 0, as their constructors leave them. Otherwise the order of events
+     * within a tick, and which of two equal events is dropped, can differ:
+     * compareTo() looks at delta times, which insertEvent() rewrites as it
+     * goes, and it doesn't order ChannelEvents against other events
+     * consistently.
+     * <p>
+     * The batch is checked before the track is touched: if it holds more than
+     * one EndOfTrack, or an EndOfTrack before another event, nothing is
+     * inserted.
+     */
+    public void insertEvents(Collection<? extends MidiEvent> newEvents)
+    {
+        ensureLoaded();
+
+        if(mClosed)
+        {
+            System.err.println("Error: Cannot add an event to a closed track.");
+            return;
+        }
+
+        ArrayList<MidiEvent> batch = new ArrayList<MidiEvent>(newEvents.size());
+        MidiEvent endOfTrack = null;
+        long lastTick = mEvents.isEmpty() ? 0 : mEvents.last().getTick();
+        for(MidiEvent E : newEvents)
+        {
+            if(E == null || E == endOfTrack)
+            {
+                continue;
+            }
+            if(E.getClass().equals(EndOfTrack.class))
+            {
+                if(endOfTrack != null)
+                {
+                    throw new IllegalArgumentException("Attempting to insert more than one EndOfTrack. Use closeTrack() when finished with MidiTrack.");
+                }
+                endOfTrack = E;
+                continue;
+            }
+            batch.add(E);
+            lastTick = Math.max(lastTick, E.getTick());
+        }
+        if(endOfTrack != null && endOfTrack.getTick() < lastTick)
+        {
+            throw new IllegalArgumentException("Attempting to insert EndOfTrack before an existing event. Use closeTrack() when finished with MidiTrack.");
+        }
+        if(batch.isEmpty() && endOfTrack == null)
+        {
+            return;
+        }
+
+        // Sorting on tick alone is stable and consistent; the order of events
+        // within a tick is settled by addInOrder() while merging.
+        Collections.sort(batch, TICK_ORDER);
+
+        ArrayList<MidiEvent> merged = new ArrayList<MidiEvent>(mEvents.size() + batch.size());
+        Iterator<MidiEvent> it = mEvents.iterator();
+        MidiEvent existing = it.hasNext() ? it.next() : null;
+
+        for(MidiEvent E : batch)
+        {
+            while(existing != null && existing.getTick() <= E.getTick())
+            {
+                appendWithDelta(merged, existing);
+                existing = it.hasNext() ? it.next() : null;
+            }
+
+            // compareTo() looks at delta times, so keep the deltas around the
+            // insertion point as insertEvent() would have left them.
+            int i = addInOrder(merged, E);
+            if(i < 0)
+            {
+                continue;
+            }
+            E.setDelta(i > 0 ? E.getTick() - merged.get(i - 1).getTick() : E.getTick());
+            if(i + 1 < merged.size())
+            {
+                MidiEvent next = merged.get(i + 1);
+                next.setDelta(next.getTick() - E.getTick());
+            }
+        }
+        while(existing != null)
+        {
+            appendWithDelta(merged, existing);
+            existing = it.hasNext() ? it.next() : null;
+        }
+
+        // Checked above to be on or after every other event's tick
+        if(endOfTrack != null)
+        {
+            appendWithDelta(merged, endOfTrack);
+        }
+
+        replaceEvents(merged);
+        mClosed = endOfTrack != null;
+    }
+
     public void insertEvent(MidiEvent newEvent)
     {
         if(newEvent == null)
@@ -176,6 +857,8 @@ public class MidiTrack
             return;
         }
 
+        ensureLoaded();
+
         if(mClosed)
         {
             System.err.println("Error: Cannot add an event to a closed track.");
@@ -183,22 +866,41 @@ public class MidiTrack
         }
 
         MidiEvent prev = null, next = null;
+        boolean found = false;
 
-        // floor() and ceiling() are not supported on Android before API Level 9
-        // (Gingerbread)
-        try
+        if(mDeferDeltas)
         {
-            Class treeSet = Class.forName("java.util.TreeSet");
-            Method floor = treeSet.getMethod("floor", Object.class);
-            Method ceiling = treeSet.getMethod("ceiling", Object.class);
-
-            prev = (MidiEvent) floor.invoke(mEvents, newEvent);
-            next = (MidiEvent) ceiling.invoke(mEvents, newEvent);
-
+            // Only needed to check that EndOfTrack goes last
+            next = mEvents.isEmpty() ? null : mEvents.last();
+            if(next != null && newEvent.compareTo(next) > 0)
+            {
+                next = null;
+            }
+            found = true;
         }
-        catch(Exception e)
+        else if(sFloor != null && sCeiling != null)
+        {
+            try
+            {
+                prev = (MidiEvent) sFloor.invoke(mEvents, newEvent);
+                next = (MidiEvent) sCeiling.invoke(mEvents, newEvent);
+                found = true;
+            }
+            catch(Exception e)
+            {
+                found = false;
+            }
+        }
+
+        if(!found)
         {
-            // methods are not supported - must perform linear search
+            // methods are not supported - must perform linear search. This
+            // only looks at ticks, so the neighbours it finds may not be the
+            // exact ones needed to adjust the size.
+            prev = null;
+            next = null;
+            mSizeNeedsRecalculating = true;
+
             Iterator<MidiEvent> it = mEvents.iterator();
 
             while(it.hasNext())
@@ -215,28 +917,52 @@ public class MidiTrack
             }
         }
 
-        mEvents.add(newEvent);
-        mSizeNeedsRecalculating = true;
+        if(!mEvents.add(newEvent))
+        {
+            // An equal event is already in the track
+            return;
+        }
 
-        // Set its delta time based on the previous event (or itself if no
-        // previous event exists)
-        if(prev != null)
+        if(mDeferDeltas)
         {
-            newEvent.setDelta(newEvent.getTick() - prev.getTick());
+            mDeltasDirty = true;
+            mSizeNeedsRecalculating = true;
         }
         else
         {
-            newEvent.setDelta(newEvent.getTick());
-        }
+            // The next event's size depends on its delta time and on whether
+            // it can reuse the previous status byte, so take it out of the
+            // size before it changes.
+            int nextSize = next != null ? sizeAfter(next, prev) : 0;
+
+            // Set its delta time based on the previous event (or itself if no
+            // previous event exists)
+            if(prev != null)
+            {
+                newEvent.setDelta(newEvent.getTick() - prev.getTick());
+            }
+            else
+            {
+                newEvent.setDelta(newEvent.getTick());
+            }
+
+            // Update the next event's delta time relative to the new event.
+            if(next != null)
+            {
+                next.setDelta(next.getTick() - newEvent.getTick());
+            }
 
-        // Update the next event's delta time relative to the new event.
-        if(next != null)
+            mSize += sizeAfter(newEvent, prev);
+            if(next != null)
+            {
+                mSize += sizeAfter(next, newEvent) - nextSize;
+            }
+        }
+        if(mSizeIsFromChunk)
         {
-            next.setDelta(next.getTick() - newEvent.getTick());
+            mSizeNeedsRecalculating = true;
         }
 
-        mSize += newEvent.getSize();
-
         if(newEvent.getClass().equals(EndOfTrack.class))
         {
             if(next != null)
@@ -249,49 +975,135 @@ public class MidiTrack
 
     public boolean removeEvent(MidiEvent E)
     {
-        Iterator<MidiEvent> it = mEvents.iterator();
-        MidiEvent prev = null, curr = null, next = null;
+        ensureLoaded();
 
-        while(it.hasNext())
-        {
-            next = it.next();
+        MidiEvent prev = null, next = null;
+        Iterator<MidiEvent> it = null;
 
-            if(E.equals(curr))
+        if(sLower != null)
+        {
+            try
             {
-                break;
+                // Only the events on E's tick need to be looked at. E itself
+                // can't be the search key: compareTo() also looks at delta
+                // times, which change as the track is edited.
+                TickProbe start = new TickProbe(E.getTick());
+                prev = (MidiEvent) sLower.invoke(mEvents, start);
+                it = mEvents.tailSet(start).iterator();
+            }
+            catch(Exception e)
+            {
+                prev = null;
+                it = null;
             }
+        }
 
-            prev = curr;
-            curr = next;
-            next = null;
+        if(it == null)
+        {
+            // lower() is not supported - must perform linear search
+            it = mEvents.iterator();
         }
 
-        if(next == null)
+        boolean found = false;
+        while(it.hasNext())
         {
-            // Either the event was not found in the track,
-            // or this is the last event in the track.
-            // Either way, we won't need to update any delta times
-            return mEvents.remove(curr);
+            MidiEvent curr = it.next();
+            if(curr == E)
+            {
+                it.remove();
+                found = true;
+                next = it.hasNext() ? it.next() : null;
+                break;
+            }
+            if(curr.getTick() > E.getTick())
+            {
+                break;
+            }
+            prev = curr;
         }
 
-        if(!mEvents.remove(curr))
+        if(!found)
         {
             return false;
         }
+        // The tailSet() iterator bypasses EventSet
+        mModCount++;
 
-        if(prev != null)
+        if(mDeferDeltas)
         {
-            next.setDelta(next.getTick() - prev.getTick());
+            mDeltasDirty = true;
+            mSizeNeedsRecalculating = true;
         }
         else
         {
-            next.setDelta(next.getTick());
+            mSize -= sizeAfter(E, prev);
+            if(next != null)
+            {
+                mSize -= sizeAfter(next, E);
+                next.setDelta(prev != null ? next.getTick() - prev.getTick() : next.getTick());
+                mSize += sizeAfter(next, prev);
+            }
+        }
+        if(mSizeIsFromChunk)
+        {
+            mSizeNeedsRecalculating = true;
+        }
+        if(E.getClass().equals(EndOfTrack.class))
+        {
+            mClosed = false;
+        }
+        return true;
+    }
+
+    /**
+     * Removes every event the filter accepts, fixing up the remaining delta
+     * times and the track size in a single pass.
+     * 
+     * @return true if any events were removed
+     */
+    public boolean removeIf(MidiEventFilter filter)
+    {
+        return filterEvents(filter, true);
+    }
+
+    /**
+     * Removes every event the filter does not accept, fixing up the remaining
+     * delta times and the track size in a single pass.
+     * 
+     * @return true if any events were removed
+     */
+    public boolean retainAll(MidiEventFilter filter)
+    {
+        return filterEvents(filter, false);
+    }
+
+    private boolean filterEvents(MidiEventFilter filter, boolean remove)
+    {
+        ensureLoaded();
+
+        ArrayList<MidiEvent> kept = new ArrayList<MidiEvent>(mEvents.size());
+        for(MidiEvent E : mEvents)
+        {
+            if(filter.accept(E) != remove)
+            {
+                kept.add(E);
+            }
+        }
+
+        if(kept.size() == mEvents.size())
+        {
+            return false;
         }
+
+        replaceEvents(kept);
+        mClosed = !kept.isEmpty() && kept.get(kept.size() - 1).getClass().equals(EndOfTrack.class);
         return true;
     }
 
     public void closeTrack()
     {
+        ensureLoaded();
+
         long lastTick = 0;
         if(mEvents.size() > 0)
         {
@@ -304,6 +1116,13 @@ public class MidiTrack
 
     public void dumpEvents()
     {
+        ensureLoaded();
+
+        if(mDeltasDirty)
+        {
+            recalculateSize();
+        }
+
         Iterator<MidiEvent> it = mEvents.iterator();
         while(it.hasNext())
         {
@@ -313,6 +1132,8 @@ public class MidiTrack
 
     private void recalculateSize()
     {
+        ensureLoaded();
+
         mSize = 0;
 
         Iterator<MidiEvent> it = mEvents.iterator();
@@ -320,22 +1141,46 @@ public class MidiTrack
         while(it.hasNext())
         {
             MidiEvent E = it.next();
-            mSize += E.getSize();
 
-            // If an event is of the same type as the previous event,
-            // no status byte is written.
-            if(last != null && !E.requiresStatusByte(last))
+            // Deferred deltas are filled in on the way, since the size
+            // depends on them.
+            if(mDeltasDirty)
             {
-                mSize--;
+                E.setDelta(last != null ? E.getTick() - last.getTick() : E.getTick());
             }
+            mSize += sizeAfter(E, last);
             last = E;
         }
 
         mSizeNeedsRecalculating = false;
+        mSizeIsFromChunk = false;
+        mDeltasDirty = false;
     }
 
-    public void writeToFile(OutputStream out) throws IOException
+    /**
+     * @return the number of bytes E takes when written after prev. If an
+     *         event is of the same type as the previous event, no status byte
+     *         is written.
+     */
+    private static int sizeAfter(MidiEvent E, MidiEvent prev)
     {
+        int size = E.getSize();
+        if(prev != null && !E.requiresStatusByte(prev))
+        {
+            size--;
+        }
+        return size;
+    }
+
+    /**
+     * Closes the track if necessary and brings its size up to date.
+     * 
+     * @return the number of bytes the whole MTrk chunk will take when written
+     */
+    int prepareToWrite()
+    {
+        ensureLoaded();
+
         if(!mClosed)
         {
             closeTrack();
@@ -346,6 +1191,13 @@ public class MidiTrack
             recalculateSize();
         }
 
+        return IDENTIFIER.length + 4 + mSize;
+    }
+
+    public void writeToFile(OutputStream out) throws IOException
+    {
+        prepareToWrite();
+
         out.write(IDENTIFIER);
         out.write(MidiUtil.intToBytes(mSize, 4));
 
@@ -365,4 +1217,27 @@ public class MidiTrack
             lastEvent = event;
         }
     }
+
+    /**
+     * Encodes the whole MTrk chunk into the buffer, which must have at least
+     * as many bytes remaining as the chunk needs (the track's size plus 8).
+     */
+    public void writeToBuffer(ByteBuffer out)
+    {
+        int chunkSize = prepareToWrite();
+        if(out.remaining() < chunkSize)
+        {
+            throw new BufferOverflowException();
+        }
+
+        out.put(IDENTIFIER);
+        out.putInt(mSize);
+
+        MidiEvent lastEvent = null;
+        for(MidiEvent event : mEvents)
+        {
+            event.encode(out, event.requiresStatusByte(lastEvent));
+            lastEvent = event;
+        }
+    }
 }
@@ -0,0 +1,485 @@
+//////////////////////////////////////////////////////////////////////////////
+//	Copyright 2011 Alex Leffelman
+//	
+//	Licensed under the Apache License, Version 2.0 (the "License");
+//	you may not use this file except in compliance with the License.
+//	You may obtain a copy of the License at
+//	
+//	http://www.apache.org/licenses/LICENSE-2.0
+//	
+//	Unless required by applicable law or agreed to in writing, software
+//	distributed under the License is distributed on an "AS IS" BASIS,
+//	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//	See the License for the specific language governing permissions and
+//	limitations under the License.
+//////////////////////////////////////////////////////////////////////////////
+
+package com.leff.midi;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.leff.midi.event.ChannelEvent;
+import com.leff.midi.event.MidiEvent;
+import com.leff.midi.event.MidiParser;
+import com.leff.midi.event.meta.EndOfTrack;
+import com.leff.midi.util.MidiUtil;
+import com.leff.midi.util.VariableLengthInt;
+
+/**
+ * A compact alternative to MidiTrack's storage. Channel events are held in
+ * parallel primitive arrays (a tick and a packed status/data1/data2 int per
+ * event), and meta and SysEx events are kept as their encoded bytes in a side
+ * table. No MidiEvent objects are stored: {@link #getEvent(int)} creates a
+ * new one on every call, so changing it doesn't change the track, and adding
+ * an event copies it.
+ * <p>
+ * Events are ordered by tick, and events on the same tick keep the order in
+ * which they were added.
+ * <p>
+ * This is a class of its own rather than a storage mode of MidiTrack, which
+ * is narrower than a storage mode would be. MidiTrack hands out its events
+ * as a mutable set of MidiEvent objects, so a packed MidiTrack would have to
+ * create every object the first time it was used, and until then a MidiTrack
+ * read from a file already holds nothing but its undecoded chunk bytes.
+ * PackedMidiTrack only saves memory for code that reads, edits and writes
+ * tracks through the index-based methods here. MidiFile, MidiProcessor and
+ * the rest of the library take MidiTracks, and {@link #toTrack()} creates an
+ * object for every event to build one.
+ */
+public class PackedMidiTrack
+{
+    private static final int DEFAULT_CAPACITY = 64;
+
+    private long[] mTicks;
+    private int[] mPacked;
+    private int mCount;
+
+    // Meta and SysEx events, encoded with their status byte but without a
+    // delta time; mPacked holds ~index for these
+    private List<byte[]> mSideTable;
+
+    // Side table slots emptied by removeEvent(), reused before the table
+    // grows
+    private int[] mFreeSlots;
+    private int mFreeCount;
+
+    private long mEndOfTrackDelta;
+
+    private MidiParser mParser;
+
+    public PackedMidiTrack()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public PackedMidiTrack(int capacity)
+    {
+        capacity = Math.max(capacity, 1);
+
+        mTicks = new long[capacity];
+        mPacked = new int[capacity];
+        mCount = 0;
+        mSideTable = new ArrayList<byte[]>();
+        mFreeSlots = new int[4];
+        mFreeCount = 0;
+        mEndOfTrackDelta = 0;
+    }
+
+    /**
+     * Reads one MTrk chunk starting at the buffer's current position, and
+     * leaves the buffer positioned just past the end of the chunk. Channel
+     * events go straight into the arrays without creating event objects.
+     */
+    public PackedMidiTrack(ByteBuffer in)
+    {
+        this();
+
+        boolean isTrack = in.remaining() >= MidiFormat.CHUNK_HEADER_SIZE && MidiFormat.isTrackChunk(in, in.position());
+        ByteBuffer data = MidiFormat.nextTrackChunk(in);
+        if(!isTrack)
+        {
+            System.err.println("Track identifier did not match MTrk!");
+            return;
+        }
+
+        readTrackData(data);
+    }
+
+    public static PackedMidiTrack fromTrack(MidiTrack track)
+    {
+        PackedMidiTrack packed = new PackedMidiTrack(track.getEventCount());
+        for(MidiEvent E : track.getEvents())
+        {
+            if(E.getClass().equals(EndOfTrack.class))
+            {
+                continue;
+            }
+            packed.add(E);
+        }
+        packed.mEndOfTrackDelta = track.getEndOfTrackDelta();
+        return packed;
+    }
+
+    /**
+     * Builds a MidiTrack holding a new object for every event. Events that
+     * compare equal are all kept.
+     */
+    public MidiTrack toTrack()
+    {
+        List<MidiEvent> events = new ArrayList<MidiEvent>(mCount);
+        for(int i = 0; i < mCount; i++)
+        {
+            events.add(getEvent(i));
+        }
+
+        MidiTrack track = MidiTrack.fromTickOrder(events);
+        track.setEndOfTrackDelta(mEndOfTrackDelta);
+        return track;
+    }
+
+    public int getEventCount()
+    {
+        return mCount;
+    }
+
+    public long getLengthInTicks()
+    {
+        return mCount == 0 ? 0 : mTicks[mCount - 1];
+    }
+
+    public long getEndOfTrackDelta()
+    {
+        return mEndOfTrackDelta;
+    }
+
+    public void setEndOfTrackDelta(long delta)
+    {
+        mEndOfTrackDelta = delta;
+    }
+
+    public long getTick(int index)
+    {
+        return mTicks[index];
+    }
+
+    /**
+     * @return whether the event at this index is a channel event, as opposed
+     *         to a meta or SysEx event
+     */
+    public boolean isChannelEvent(int index)
+    {
+        return mPacked[index] >= 0;
+    }
+
+    /**
+     * @return the status byte (type and channel) of a channel event, or -1
+     *         for meta and SysEx events
+     */
+    public int getStatus(int index)
+    {
+        int packed = mPacked[index];
+        return packed >= 0 ? packed >> 16 : -1;
+    }
+
+    public int getData1(int index)
+    {
+        int packed = mPacked[index];
+        return packed >= 0 ? (packed >> 8) & 0xFF : -1;
+    }
+
+    public int getData2(int index)
+    {
+        int packed = mPacked[index];
+        return packed >= 0 ? packed & 0xFF : -1;
+    }
+
+    /**
+     * Builds a new MidiEvent for the event at this index on each call.
+     * Changes made to it are not stored back into the track.
+     */
+    public MidiEvent getEvent(int index)
+    {
+        long tick = mTicks[index];
+        long delta = index == 0 ? tick : tick - mTicks[index - 1];
+
+        int packed = mPacked[index];
+        if(packed < 0)
+        {
+            if(mParser == null)
+            {
+                mParser = new MidiParser();
+            }
+            return mParser.parseEvent(tick, delta, ByteBuffer.wrap(mSideTable.get(~packed)));
+        }
+
+        int status = packed >> 16;
+        return ChannelEvent.createChannelEvent(tick, delta, status >> 4, status & 0x0F, (packed >> 8) & 0xFF, packed & 0xFF);
+    }
+
+    public void add(MidiEvent E)
+    {
+        if(E instanceof ChannelEvent)
+        {
+            ChannelEvent ce = (ChannelEvent) E;
+            addChannelEvent(E.getTick(), (ce.getType() << 4) | ce.getChannel(), ce.getValue1(), ce.getValue2());
+            return;
+        }
+        insert(E.getTick(), ~addToSideTable(encode(E)));
+    }
+
+    /**
+     * Adds a channel event without creating an event object. The status byte
+     * holds the event type in its high nibble and the channel in its low
+     * nibble.
+     */
+    public void addChannelEvent(long tick, int status, int data1, int data2)
+    {
+        insert(tick, ((status & 0xFF) << 16) | ((data1 & 0xFF) << 8) | (data2 & 0xFF));
+    }
+
+    public void removeEvent(int index)
+    {
+        if(index < 0 || index >= mCount)
+        {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + mCount);
+        }
+
+        int packed = mPacked[index];
+
+        System.arraycopy(mTicks, index + 1, mTicks, index, mCount - index - 1);
+        System.arraycopy(mPacked, index + 1, mPacked, index, mCount - index - 1);
+        mCount--;
+
+        if(packed < 0)
+        {
+            // Leave a hole so that the other side table indices stay valid,
+            // and hand it to the next meta or SysEx event
+            mSideTable.set(~packed, null);
+
+            if(mFreeCount == mFreeSlots.length)
+            {
+                int[] slots = new int[mFreeSlots.length * 2];
+                System.arraycopy(mFreeSlots, 0, slots, 0, mFreeCount);
+                mFreeSlots = slots;
+            }
+            mFreeSlots[mFreeCount++] = ~packed;
+        }
+    }
+
+    /**
+     * @return the event's bytes after its delta time
+     */
+    private static byte[] encode(MidiEvent E)
+    {
+        int deltaLength = VariableLengthInt.encodedLength((int) E.getDelta());
+        ByteBuffer out = ByteBuffer.allocate(E.getSize());
+        E.encode(out, true);
+
+        byte[] data = new byte[out.position() - deltaLength];
+        out.position(deltaLength);
+        out.get(data);
+        return data;
+    }
+
+    /**
+     * @return the side table index the event was stored at
+     */
+    private int addToSideTable(byte[] E)
+    {
+        if(mFreeCount > 0)
+        {
+            int slot = mFreeSlots[--mFreeCount];
+            mSideTable.set(slot, E);
+            return slot;
+        }
+
+        mSideTable.add(E);
+        return mSideTable.size() - 1;
+    }
+
+    /**
+     * @return the number of bytes the track's events take when written,
+     *         including the closing EndOfTrack event but not the chunk header
+     */
+    public int getSize()
+    {
+        int size = 0;
+        long lastTick = 0;
+        int lastStatus = -1;
+
+        for(int i = 0; i < mCount; i++)
+        {
+            size += VariableLengthInt.encodedLength((int) (mTicks[i] - lastTick));
+            lastTick = mTicks[i];
+
+            int packed = mPacked[i];
+            if(packed < 0)
+            {
+                size += mSideTable.get(~packed).length;
+                lastStatus = -1;
+                continue;
+            }
+
+            int status = packed >> 16;
+            size += status != lastStatus ? 1 : 0;
+            size += MidiFormat.channelDataLength(status);
+            lastStatus = status;
+        }
+
+        return size + VariableLengthInt.encodedLength((int) mEndOfTrackDelta) + 3;
+    }
+
+    /**
+     * Encodes the whole MTrk chunk, including a closing EndOfTrack event, into
+     * the buffer. The buffer must have at least {@link #getSize()} + 8 bytes
+     * remaining.
+     */
+    public void writeToBuffer(ByteBuffer out)
+    {
+        int size = getSize();
+        if(out.remaining() < size + 8)
+        {
+            throw new BufferOverflowException();
+        }
+
+        out.put(MidiTrack.IDENTIFIER);
+        out.putInt(size);
+
+        long lastTick = 0;
+        int lastStatus = -1;
+
+        for(int i = 0; i < mCount; i++)
+        {
+            VariableLengthInt.write(out, (int) (mTicks[i] - lastTick));
+            lastTick = mTicks[i];
+
+            int packed = mPacked[i];
+            if(packed < 0)
+            {
+                out.put(mSideTable.get(~packed));
+                lastStatus = -1;
+                continue;
+            }
+
+            int status = packed >> 16;
+            if(status != lastStatus)
+            {
+                out.put((byte) status);
+            }
+            out.put((byte) (packed >> 8));
+            if(MidiFormat.channelDataLength(status) == 2)
+            {
+                out.put((byte) packed);
+            }
+            lastStatus = status;
+        }
+
+        VariableLengthInt.write(out, (int) mEndOfTrackDelta);
+        out.put((byte) 0xFF);
+        out.put((byte) 0x2F);
+        out.put((byte) 0);
+    }
+
+    private void readTrackData(ByteBuffer in)
+    {
+        MidiParser parser = null;
+        long tick = 0;
+        int runningStatus = -1;
+
+        while(in.hasRemaining())
+        {
+            int delta = VariableLengthInt.read(in);
+            tick += delta;
+
+            if(!in.hasRemaining())
+            {
+                break;
+            }
+
+            int status = in.get(in.position()) & 0xFF;
+            if(status < 0x80 && runningStatus >= 0)
+            {
+                status = runningStatus;
+            }
+            else if(status >= 0x80 && status < 0xF0)
+            {
+                in.get();
+                runningStatus = status;
+            }
+            else
+            {
+                // Meta, SysEx or a broken status byte. These are rare enough
+                // that the regular parser can handle them.
+                if(parser == null)
+                {
+                    parser = new MidiParser();
+                }
+                runningStatus = -1;
+
+                MidiEvent E = parser.parseEvent(tick, delta, in);
+                if(E == null)
+                {
+                    continue;
+                }
+                if(E.getClass().equals(EndOfTrack.class))
+                {
+                    mEndOfTrackDelta = delta;
+                    break;
+                }
+
+                insert(tick, ~addToSideTable(encode(E)));
+                continue;
+            }
+
+            int data1 = MidiUtil.read(in);
+            int data2 = MidiFormat.channelDataLength(status) == 2 ? MidiUtil.read(in) : 0;
+            addChannelEvent(tick, status, data1, data2);
+        }
+    }
+
+    private void insert(long tick, int packed)
+    {
+        if(mCount == mTicks.length)
+        {
+            int capacity = mTicks.length * 2;
+
+            long[] ticks = new long[capacity];
+            System.arraycopy(mTicks, 0, ticks, 0, mCount);
+            mTicks = ticks;
+
+            int[] events = new int[capacity];
+            System.arraycopy(mPacked, 0, events, 0, mCount);
+            mPacked = events;
+        }
+
+        int index = mCount;
+        if(mCount > 0 && tick < mTicks[mCount - 1])
+        {
+            // Insert after any events already on this tick
+            int lo = 0, hi = mCount;
+            while(lo < hi)
+            {
+                int mid = (lo + hi) >>> 1;
+                if(mTicks[mid] <= tick)
+                {
+                    lo = mid + 1;
+                }
+                else
+                {
+                    hi = mid;
+                }
+            }
+            index = lo;
+
+            System.arraycopy(mTicks, index, mTicks, index + 1, mCount - index);
+            System.arraycopy(mPacked, index, mPacked, index + 1, mCount - index);
+        }
+
+        mTicks[index] = tick;
+        mPacked[index] = packed;
+        mCount++;
+    }
+}
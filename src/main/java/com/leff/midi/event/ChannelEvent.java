@@ -19,8 +19,11 @@ package com.leff.midi.event;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 
+import com.leff.midi.util.MidiUtil;
+
 public class ChannelEvent extends MidiEvent
 {
     protected int mType;
@@ -28,7 +31,7 @@ public class ChannelEvent extends MidiEvent
     protected int mValue1;
     protected int mValue2;
 
-    private static HashMap<Integer, Integer> mOrderMap;
+    private static final HashMap<Integer, Integer> mOrderMap = buildOrderMap();
 
     protected ChannelEvent(long tick, int type, int channel, int param1, int param2)
     {
@@ -68,6 +71,16 @@ public class ChannelEvent extends MidiEvent
         return mChannel;
     }
 
+    public int getValue1()
+    {
+        return mValue1;
+    }
+
+    public int getValue2()
+    {
+        return mValue2;
+    }
+
     protected int getEventSize()
     {
         switch(mType)
@@ -87,9 +100,9 @@ public class ChannelEvent extends MidiEvent
         {
             return mTick < other.getTick() ? -1 : 1;
         }
-        if(mDelta.getValue() != other.mDelta.getValue())
+        if(mDelta != other.mDelta)
         {
-            return mDelta.getValue() < other.mDelta.getValue() ? 1 : -1;
+            return mDelta < other.mDelta ? 1 : -1;
         }
 
         if(!(other instanceof ChannelEvent))
@@ -100,11 +113,6 @@ public class ChannelEvent extends MidiEvent
         ChannelEvent o = (ChannelEvent) other;
         if(mType != o.getType())
         {
-            if(mOrderMap == null)
-            {
-                buildOrderMap();
-            }
-
             int order1 = mOrderMap.get(mType);
             int order2 = mOrderMap.get(o.getType());
 
@@ -159,6 +167,23 @@ public class ChannelEvent extends MidiEvent
         }
     }
 
+    @Override
+    public void encode(ByteBuffer dst, boolean writeType)
+    {
+        super.encode(dst, writeType);
+
+        if(writeType)
+        {
+            dst.put((byte) ((mType << 4) + mChannel));
+        }
+
+        dst.put((byte) mValue1);
+        if(mType != PROGRAM_CHANGE && mType != CHANNEL_AFTERTOUCH)
+        {
+            dst.put((byte) mValue2);
+        }
+    }
+
     public static ChannelEvent parseChannelEvent(long tick, long delta, int type, int channel, InputStream in) throws IOException
     {
         int val1 = in.read();
@@ -168,6 +193,23 @@ public class ChannelEvent extends MidiEvent
             val2 = in.read();
         }
 
+        return createChannelEvent(tick, delta, type, channel, val1, val2);
+    }
+
+    public static ChannelEvent parseChannelEvent(long tick, long delta, int type, int channel, ByteBuffer in)
+    {
+        int val1 = MidiUtil.read(in);
+        int val2 = 0;
+        if(type != PROGRAM_CHANGE && type != CHANNEL_AFTERTOUCH)
+        {
+            val2 = MidiUtil.read(in);
+        }
+
+        return createChannelEvent(tick, delta, type, channel, val1, val2);
+    }
+
+    public static ChannelEvent createChannelEvent(long tick, long delta, int type, int channel, int val1, int val2)
+    {
         switch(type)
         {
             case NOTE_OFF:
@@ -189,18 +231,21 @@ public class ChannelEvent extends MidiEvent
         }
     }
 
-    private static void buildOrderMap()
+    // Built eagerly so that concurrent parsers never see a partially filled
+    // map.
+    private static HashMap<Integer, Integer> buildOrderMap()
     {
+        HashMap<Integer, Integer> orderMap = new HashMap<Integer, Integer>();
 
-        mOrderMap = new HashMap<Integer, Integer>();
+        orderMap.put(PROGRAM_CHANGE, 0);
+        orderMap.put(CONTROLLER, 1);
+        orderMap.put(NOTE_ON, 2);
+        orderMap.put(NOTE_OFF, 3);
+        orderMap.put(NOTE_AFTERTOUCH, 4);
+        orderMap.put(CHANNEL_AFTERTOUCH, 5);
+        orderMap.put(PITCH_BEND, 6);
 
-        mOrderMap.put(PROGRAM_CHANGE, 0);
-        mOrderMap.put(CONTROLLER, 1);
-        mOrderMap.put(NOTE_ON, 2);
-        mOrderMap.put(NOTE_OFF, 3);
-        mOrderMap.put(NOTE_AFTERTOUCH, 4);
-        mOrderMap.put(CHANNEL_AFTERTOUCH, 5);
-        mOrderMap.put(PITCH_BEND, 6);
+        return orderMap;
     }
 
     public static final int NOTE_OFF = 0x8;
@@ -19,6 +19,9 @@ package com.leff.midi.event;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
 
 import com.leff.midi.event.meta.MetaEvent;
 import com.leff.midi.util.VariableLengthInt;
@@ -26,12 +29,19 @@ import com.leff.midi.util.VariableLengthInt;
 public abstract class MidiEvent implements Comparable<MidiEvent>
 {
     protected long mTick;
-    protected VariableLengthInt mDelta;
+    protected int mDelta;
+
+    // Cached typeIdOf(getClass()), or -1 until it is first needed
+    private int mTypeId = -1;
+
+    // Copy-on-write, so lookups don't need to lock
+    private static volatile HashMap<Class<?>, Integer> sTypeIds = new HashMap<Class<?>, Integer>();
+    private static final Object sTypeIdLock = new Object();
 
     public MidiEvent(long tick, long delta)
     {
         mTick = tick;
-        mDelta = new VariableLengthInt((int) delta);
+        mDelta = (int) delta;
     }
 
     public long getTick()
@@ -41,19 +51,69 @@ public abstract class MidiEvent implements Comparable<MidiEvent>
 
     public long getDelta()
     {
-        return mDelta.getValue();
+        return mDelta;
     }
 
     public void setDelta(long d)
     {
-        mDelta.setValue((int) d);
+        mDelta = (int) d;
+    }
+
+    /**
+     * @return a small integer identifying the event's class, suitable as an
+     *         array index. See {@link #typeIdOf(Class)}.
+     */
+    public final int getTypeId()
+    {
+        int id = mTypeId;
+        if(id < 0)
+        {
+            id = typeIdOf(getClass());
+            mTypeId = id;
+        }
+        return id;
+    }
+
+    /**
+     * Ids are handed out to event classes in order of first use, starting at
+     * 0, so they are only meaningful within one run of the program.
+     */
+    public static int typeIdOf(Class<? extends MidiEvent> type)
+    {
+        Integer id = sTypeIds.get(type);
+        if(id != null)
+        {
+            return id;
+        }
+
+        synchronized(sTypeIdLock)
+        {
+            id = sTypeIds.get(type);
+            if(id == null)
+            {
+                HashMap<Class<?>, Integer> ids = new HashMap<Class<?>, Integer>(sTypeIds);
+                id = ids.size();
+                ids.put(type, id);
+                sTypeIds = ids;
+            }
+            return id;
+        }
+    }
+
+    /**
+     * @return the number of type ids handed out so far. Every id is less than
+     *         this.
+     */
+    public static int getTypeIdCount()
+    {
+        return sTypeIds.size();
     }
 
     protected abstract int getEventSize();
 
     public int getSize()
     {
-        return getEventSize() + mDelta.getByteCount();
+        return getEventSize() + VariableLengthInt.encodedLength(mDelta);
     }
 
     public boolean requiresStatusByte(MidiEvent prevEvent)
@@ -75,87 +135,72 @@ public abstract class MidiEvent implements Comparable<MidiEvent>
 
     public void writeToFile(OutputStream out, boolean writeType) throws IOException
     {
-        out.write(mDelta.getBytes());
+        VariableLengthInt.write(out, mDelta);
     }
 
-    private static int sId = -1;
-    private static int sType = -1;
-    private static int sChannel = -1;
-
-    public static final MidiEvent parseEvent(long tick, long delta, InputStream in) throws IOException
+    /**
+     * Encodes the event, including its delta time, at the buffer's position.
+     * Nothing is allocated, so this can be used to serialize large numbers of
+     * events. The buffer must have at least {@link #getSize()} bytes
+     * remaining.
+     */
+    public void encode(ByteBuffer dst, boolean writeType)
     {
-        in.mark(1);
-        boolean reset = false;
+        VariableLengthInt.write(dst, mDelta);
+    }
 
-        int id = in.read();
-        if(!verifyIdentifier(id))
+    /**
+     * Encodes the event into the array starting at the given offset. The
+     * array must have at least {@link #getSize()} bytes after the offset.
+     * Each thread keeps a weakly held wrapper around the last array it
+     * encoded into, so encoding many events into the same array allocates
+     * nothing between garbage collections, and the array isn't kept alive.
+     * 
+     * @return the offset just past the encoded event
+     */
+    public int encode(byte[] buf, int off, boolean writeType)
+    {
+        WeakReference<ByteBuffer> ref = sArrayBuffer.get();
+        ByteBuffer dst = ref != null ? ref.get() : null;
+        if(dst == null || dst.array() != buf)
         {
-            in.reset();
-            reset = true;
+            dst = ByteBuffer.wrap(buf);
+            sArrayBuffer.set(new WeakReference<ByteBuffer>(dst));
         }
 
-        if(sType >= 0x8 && sType <= 0xE)
-        {
-            return ChannelEvent.parseChannelEvent(tick, delta, sType, sChannel, in);
-        }
-        else if(sId == 0xFF)
-        {
-            return MetaEvent.parseMetaEvent(tick, delta, in);
-        }
-        else if(sId == 0xF0 || sId == 0xF7)
-        {
-            VariableLengthInt size = new VariableLengthInt(in);
-            byte[] data = new byte[size.getValue()];
-            in.read(data);
-            return new SystemExclusiveEvent(sId, tick, delta, data);
-        }
-        else
+        dst.limit(buf.length);
+        dst.position(off);
+        encode(dst, writeType);
+        return dst.position();
+    }
+
+    private static final ThreadLocal<WeakReference<ByteBuffer>> sArrayBuffer = new ThreadLocal<WeakReference<ByteBuffer>>();
+
+    // The static parse methods keep one parser per calling thread so that
+    // concurrent callers don't share running status. Prefer an explicit
+    // MidiParser per stream.
+    private static final ThreadLocal<MidiParser> sParser = new ThreadLocal<MidiParser>()
+    {
+        @Override
+        protected MidiParser initialValue()
         {
-            System.out.println("Unable to handle status byte, skipping: " + sId);
-            if(reset)
-            {
-                in.read();
-            }
+            return new MidiParser();
         }
+    };
 
-        return null;
+    public static final MidiEvent parseEvent(long tick, long delta, InputStream in) throws IOException
+    {
+        return sParser.get().parseEvent(tick, delta, in);
     }
 
-    private static boolean verifyIdentifier(int id)
+    public static final MidiEvent parseEvent(long tick, long delta, ByteBuffer in)
     {
-        sId = id;
-
-        int type = id >> 4;
-        int channel = id & 0x0F;
-
-        if(type >= 0x8 && type <= 0xE)
-        {
-            sId = id;
-            sType = type;
-            sChannel = channel;
-        }
-        else if(id == 0xFF)
-        {
-            sId = id;
-            sType = -1;
-            sChannel = -1;
-        }
-        else if(type == 0xF)
-        {
-            sId = id;
-            sType = type;
-            sChannel = -1;
-        }
-        else
-        {
-            return false;
-        }
-        return true;
+        return sParser.get().parseEvent(tick, delta, in);
     }
 
     @Override
     public String toString()
     {
-        return "" + mTick + " (" + mDelta.getValue() + "): " + this.getClass().getSimpleName();
+        return "" + mTick + " (" + mDelta + "): " + this.getClass().getSimpleName();
     }
 }
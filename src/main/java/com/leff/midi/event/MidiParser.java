@@ -0,0 +1,161 @@
+//////////////////////////////////////////////////////////////////////////////
+//	Copyright 2011 Alex Leffelman
+//	
+//	Licensed under the Apache License, Version 2.0 (the "License");
+//	you may not use this file except in compliance with the License.
+//	You may obtain a copy of the License at
+//	
+//	http://www.apache.org/licenses/LICENSE-2.0
+//	
+//	Unless required by applicable law or agreed to in writing, software
+//	distributed under the License is distributed on an "AS IS" BASIS,
+//	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//	See the License for the specific language governing permissions and
+//	limitations under the License.
+//////////////////////////////////////////////////////////////////////////////
+
+package com.leff.midi.event;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import com.leff.midi.event.meta.MetaEvent;
+import com.leff.midi.util.MidiUtil;
+import com.leff.midi.util.VariableLengthInt;
+
+/**
+ * Decodes a stream of events, keeping track of the running status between
+ * them. Each instance holds its own state, so separate parsers can decode
+ * separate tracks or files at the same time. A single instance is not
+ * thread-safe.
+ */
+public class MidiParser
+{
+    private int mId;
+    private int mType;
+    private int mChannel;
+
+    public MidiParser()
+    {
+        reset();
+    }
+
+    /**
+     * Clears the running status, e.g. at the start of a new track chunk.
+     */
+    public void reset()
+    {
+        mId = -1;
+        mType = -1;
+        mChannel = -1;
+    }
+
+    public MidiEvent parseEvent(long tick, long delta, InputStream in) throws IOException
+    {
+        in.mark(1);
+        boolean reset = false;
+
+        int id = in.read();
+        if(!verifyIdentifier(id))
+        {
+            in.reset();
+            reset = true;
+        }
+
+        if(mType >= 0x8 && mType <= 0xE)
+        {
+            return ChannelEvent.parseChannelEvent(tick, delta, mType, mChannel, in);
+        }
+        else if(mId == 0xFF)
+        {
+            return MetaEvent.parseMetaEvent(tick, delta, in);
+        }
+        else if(mId == 0xF0 || mId == 0xF7)
+        {
+            byte[] data = new byte[VariableLengthInt.read(in)];
+            in.read(data);
+            return new SystemExclusiveEvent(mId, tick, delta, data);
+        }
+        else
+        {
+            System.out.println("Unable to handle status byte, skipping: " + mId);
+            if(reset)
+            {
+                in.read();
+            }
+        }
+
+        return null;
+    }
+
+    public MidiEvent parseEvent(long tick, long delta, ByteBuffer in)
+    {
+        int start = in.position();
+        boolean reset = false;
+
+        int id = MidiUtil.read(in);
+        if(!verifyIdentifier(id))
+        {
+            in.position(start);
+            reset = true;
+        }
+
+        if(mType >= 0x8 && mType <= 0xE)
+        {
+            return ChannelEvent.parseChannelEvent(tick, delta, mType, mChannel, in);
+        }
+        else if(mId == 0xFF)
+        {
+            return MetaEvent.parseMetaEvent(tick, delta, in);
+        }
+        else if(mId == 0xF0 || mId == 0xF7)
+        {
+            byte[] data = new byte[VariableLengthInt.read(in)];
+            MidiUtil.read(in, data);
+            return new SystemExclusiveEvent(mId, tick, delta, data);
+        }
+        else
+        {
+            System.out.println("Unable to handle status byte, skipping: " + mId);
+            if(reset)
+            {
+                MidiUtil.read(in);
+            }
+        }
+
+        return null;
+    }
+
+    private boolean verifyIdentifier(int id)
+    {
+        mId = id;
+
+        int type = id >> 4;
+        int channel = id & 0x0F;
+
+        if(type >= 0x8 && type <= 0xE)
+        {
+            mId = id;
+            mType = type;
+            mChannel = channel;
+        }
+        else if(id == 0xFF)
+        {
+            mId = id;
+            mType = -1;
+            mChannel = -1;
+        }
+        else if(type == 0xF)
+        {
+            mId = id;
+            mType = type;
+            mChannel = -1;
+        }
+        else
+        {
+            return false;
+        }
+        return true;
+    }
+}
@@ -18,6 +18,7 @@ package com.leff.midi.event;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 import com.leff.midi.util.VariableLengthInt;
 
@@ -28,7 +29,6 @@ import com.leff.midi.util.VariableLengthInt;
 public class SystemExclusiveEvent extends MidiEvent
 {
     private int mType;
-    private VariableLengthInt mLength;
     private byte[] mData;
 
     public SystemExclusiveEvent(int type, long tick, byte[] data)
@@ -46,7 +46,6 @@ public class SystemExclusiveEvent extends MidiEvent
             mType = 0xF0;
         }
 
-        mLength = new VariableLengthInt(data.length);
         mData = data;
     }
 
@@ -57,7 +56,6 @@ public class SystemExclusiveEvent extends MidiEvent
 
     public void setData(byte[] data)
     {
-        mLength.setValue(data.length);
         mData = data;
     }
 
@@ -73,10 +71,20 @@ public class SystemExclusiveEvent extends MidiEvent
         super.writeToFile(out, writeType);
 
         out.write(mType);
-        out.write(mLength.getBytes());
+        VariableLengthInt.write(out, mData.length);
         out.write(mData);
     }
 
+    @Override
+    public void encode(ByteBuffer dst, boolean writeType)
+    {
+        super.encode(dst, writeType);
+
+        dst.put((byte) mType);
+        VariableLengthInt.write(dst, mData.length);
+        dst.put(mData);
+    }
+
     @Override
     public int compareTo(MidiEvent other)
     {
@@ -89,11 +97,11 @@ public class SystemExclusiveEvent extends MidiEvent
             return 1;
         }
 
-        if(this.mDelta.getValue() > other.mDelta.getValue())
+        if(this.mDelta > other.mDelta)
         {
             return -1;
         }
-        if(this.mDelta.getValue() < other.mDelta.getValue())
+        if(this.mDelta < other.mDelta)
         {
             return 1;
         }
@@ -111,7 +119,7 @@ public class SystemExclusiveEvent extends MidiEvent
     @Override
     protected int getEventSize()
     {
-        return 1 + mLength.getByteCount() + mData.length;
+        return 1 + VariableLengthInt.encodedLength(mData.length) + mData.length;
     }
 
 }
@@ -18,15 +18,15 @@ package com.leff.midi.event.meta;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 import com.leff.midi.event.MidiEvent;
-import com.leff.midi.util.VariableLengthInt;
 
 public class EndOfTrack extends MetaEvent
 {
     public EndOfTrack(long tick, long delta)
     {
-        super(tick, delta, MetaEvent.END_OF_TRACK, new VariableLengthInt(0));
+        super(tick, delta, MetaEvent.END_OF_TRACK, 0);
     }
 
     @Override
@@ -43,6 +43,14 @@ public class EndOfTrack extends MetaEvent
         out.write(0);
     }
 
+    @Override
+    protected void encode(ByteBuffer dst)
+    {
+        super.encode(dst);
+
+        dst.put((byte) 0);
+    }
+
     @Override
     public int compareTo(MidiEvent other)
     {
@@ -50,9 +58,9 @@ public class EndOfTrack extends MetaEvent
         {
             return mTick < other.getTick() ? -1 : 1;
         }
-        if(mDelta.getValue() != other.getDelta())
+        if(mDelta != other.getDelta())
         {
-            return mDelta.getValue() < other.getDelta() ? 1 : -1;
+            return mDelta < other.getDelta() ? 1 : -1;
         }
 
         if(!(other instanceof EndOfTrack))
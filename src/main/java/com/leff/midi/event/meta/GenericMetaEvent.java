@@ -2,8 +2,10 @@ package com.leff.midi.event.meta;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 import com.leff.midi.event.MidiEvent;
+import com.leff.midi.util.VariableLengthInt;
 
 public class GenericMetaEvent extends MetaEvent
 {
@@ -15,23 +17,31 @@ public class GenericMetaEvent extends MetaEvent
 
         mData = info.data;
 
-        System.out.println("Warning: GenericMetaEvent used because type (" + info.type + ") wasn't recognized or unexpected data length (" + info.length.getValue() + ") for type.");
+        System.out.println("Warning: GenericMetaEvent used because type (" + info.type + ") wasn't recognized or unexpected data length (" + info.length + ") for type.");
     }
 
     @Override
     protected int getEventSize()
     {
-        return 1 + 1 + mLength.getByteCount() + mLength.getValue();
+        return 1 + 1 + VariableLengthInt.encodedLength(mLength) + mLength;
     }
 
     @Override
     protected void writeToFile(OutputStream out) throws IOException
     {
         super.writeToFile(out);
-        out.write(mLength.getBytes());
+        VariableLengthInt.write(out, mLength);
         out.write(mData);
     }
 
+    @Override
+    protected void encode(ByteBuffer dst)
+    {
+        super.encode(dst);
+        VariableLengthInt.write(dst, mLength);
+        dst.put(mData);
+    }
+
     @Override
     public int compareTo(MidiEvent other)
     {
@@ -39,9 +49,9 @@ public class GenericMetaEvent extends MetaEvent
         {
             return mTick < other.getTick() ? -1 : 1;
         }
-        if(mDelta.getValue() != other.getDelta())
+        if(mDelta != other.getDelta())
         {
-            return mDelta.getValue() < other.getDelta() ? 1 : -1;
+            return mDelta < other.getDelta() ? 1 : -1;
         }
 
         return 1;
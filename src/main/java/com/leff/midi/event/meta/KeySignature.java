@@ -18,9 +18,9 @@ package com.leff.midi.event.meta;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 import com.leff.midi.event.MidiEvent;
-import com.leff.midi.util.VariableLengthInt;
 
 public class KeySignature extends MetaEvent
 {
@@ -32,7 +32,7 @@ public class KeySignature extends MetaEvent
 
     public KeySignature(long tick, long delta, int key, int scale)
     {
-        super(tick, delta, MetaEvent.KEY_SIGNATURE, new VariableLengthInt(2));
+        super(tick, delta, MetaEvent.KEY_SIGNATURE, 2);
 
         this.setKey(key);
         mScale = scale;
@@ -79,9 +79,19 @@ public class KeySignature extends MetaEvent
         out.write(mScale);
     }
 
+    @Override
+    protected void encode(ByteBuffer dst)
+    {
+        super.encode(dst);
+
+        dst.put((byte) 2);
+        dst.put((byte) mKey);
+        dst.put((byte) mScale);
+    }
+
     public static MetaEvent parseKeySignature(long tick, long delta, MetaEventData info)
     {
-        if(info.length.getValue() != 2)
+        if(info.length != 2)
         {
             return new GenericMetaEvent(tick, delta, info);
         }
@@ -99,9 +109,9 @@ public class KeySignature extends MetaEvent
         {
             return mTick < other.getTick() ? -1 : 1;
         }
-        if(mDelta.getValue() != other.getDelta())
+        if(mDelta != other.getDelta())
         {
-            return mDelta.getValue() < other.getDelta() ? 1 : -1;
+            return mDelta < other.getDelta() ? 1 : -1;
         }
 
         if(!(other instanceof KeySignature))
@@ -19,16 +19,18 @@ package com.leff.midi.event.meta;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 import com.leff.midi.event.MidiEvent;
+import com.leff.midi.util.MidiUtil;
 import com.leff.midi.util.VariableLengthInt;
 
 public abstract class MetaEvent extends MidiEvent
 {
     protected int mType;
-    protected VariableLengthInt mLength;
+    protected int mLength;
 
-    protected MetaEvent(long tick, long delta, int type, VariableLengthInt length)
+    protected MetaEvent(long tick, long delta, int type, int length)
     {
         super(tick, delta);
 
@@ -51,10 +53,31 @@ public abstract class MetaEvent extends MidiEvent
         out.write(mType);
     }
 
+    @Override
+    public void encode(ByteBuffer dst, boolean writeType)
+    {
+        encode(dst);
+    }
+
+    protected void encode(ByteBuffer dst)
+    {
+        super.encode(dst, true);
+        dst.put((byte) 0xFF);
+        dst.put((byte) mType);
+    }
+
     public static MetaEvent parseMetaEvent(long tick, long delta, InputStream in) throws IOException
     {
-        MetaEventData eventData = new MetaEventData(in);
+        return createMetaEvent(tick, delta, new MetaEventData(in));
+    }
 
+    public static MetaEvent parseMetaEvent(long tick, long delta, ByteBuffer in)
+    {
+        return createMetaEvent(tick, delta, new MetaEventData(in));
+    }
+
+    private static MetaEvent createMetaEvent(long tick, long delta, MetaEventData eventData)
+    {
         boolean isText = false;
         switch(eventData.type)
         {
@@ -131,19 +154,30 @@ public abstract class MetaEvent extends MidiEvent
     protected static class MetaEventData
     {
         public final int type;
-        public final VariableLengthInt length;
+        public final int length;
         public final byte[] data;
 
         public MetaEventData(InputStream in) throws IOException
         {
             type = in.read();
-            length = new VariableLengthInt(in);
-            data = new byte[length.getValue()];
-            if(length.getValue() > 0)
+            length = VariableLengthInt.read(in);
+            data = new byte[length];
+            if(length > 0)
             {
                 in.read(data);
             }
         }
+
+        public MetaEventData(ByteBuffer in)
+        {
+            type = MidiUtil.read(in);
+            length = VariableLengthInt.read(in);
+            data = new byte[length];
+            if(length > 0)
+            {
+                MidiUtil.read(in, data);
+            }
+        }
     }
 
     public static final int SEQUENCE_NUMBER = 0;
@@ -18,9 +18,9 @@ package com.leff.midi.event.meta;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 import com.leff.midi.event.MidiEvent;
-import com.leff.midi.util.VariableLengthInt;
 
 public class MidiChannelPrefix extends MetaEvent
 {
@@ -28,7 +28,7 @@ public class MidiChannelPrefix extends MetaEvent
 
     public MidiChannelPrefix(long tick, long delta, int channel)
     {
-        super(tick, delta, MetaEvent.MIDI_CHANNEL_PREFIX, new VariableLengthInt(4));
+        super(tick, delta, MetaEvent.MIDI_CHANNEL_PREFIX, 4);
 
         mChannel = channel;
     }
@@ -58,9 +58,18 @@ public class MidiChannelPrefix extends MetaEvent
         out.write(mChannel);
     }
 
+    @Override
+    protected void encode(ByteBuffer dst)
+    {
+        super.encode(dst);
+
+        dst.put((byte) 1);
+        dst.put((byte) mChannel);
+    }
+
     public static MetaEvent parseMidiChannelPrefix(long tick, long delta, MetaEventData info)
     {
-        if(info.length.getValue() != 1)
+        if(info.length != 1)
         {
             return new GenericMetaEvent(tick, delta, info);
         }
@@ -77,9 +86,9 @@ public class MidiChannelPrefix extends MetaEvent
         {
             return mTick < other.getTick() ? -1 : 1;
         }
-        if(mDelta.getValue() != other.getDelta())
+        if(mDelta != other.getDelta())
         {
-            return mDelta.getValue() < other.getDelta() ? 1 : -1;
+            return mDelta < other.getDelta() ? 1 : -1;
         }
 
         if(!(other instanceof MidiChannelPrefix))
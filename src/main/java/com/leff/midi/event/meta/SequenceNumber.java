@@ -18,9 +18,9 @@ package com.leff.midi.event.meta;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 import com.leff.midi.event.MidiEvent;
-import com.leff.midi.util.VariableLengthInt;
 
 public class SequenceNumber extends MetaEvent
 {
@@ -28,7 +28,7 @@ public class SequenceNumber extends MetaEvent
 
     public SequenceNumber(long tick, long delta, int number)
     {
-        super(tick, delta, MetaEvent.SEQUENCE_NUMBER, new VariableLengthInt(2));
+        super(tick, delta, MetaEvent.SEQUENCE_NUMBER, 2);
 
         mNumber = number;
     }
@@ -58,9 +58,19 @@ public class SequenceNumber extends MetaEvent
         out.write(getLeastSignificantBits());
     }
 
+    @Override
+    protected void encode(ByteBuffer dst)
+    {
+        super.encode(dst);
+
+        dst.put((byte) 2);
+        dst.put((byte) getMostSignificantBits());
+        dst.put((byte) getLeastSignificantBits());
+    }
+
     public static MetaEvent parseSequenceNumber(long tick, long delta, MetaEventData info)
     {
-        if(info.length.getValue() != 2)
+        if(info.length != 2)
         {
             return new GenericMetaEvent(tick, delta, info);
         }
@@ -85,9 +95,9 @@ public class SequenceNumber extends MetaEvent
         {
             return mTick < other.getTick() ? -1 : 1;
         }
-        if(mDelta.getValue() != other.getDelta())
+        if(mDelta != other.getDelta())
         {
-            return mDelta.getValue() < other.getDelta() ? 1 : -1;
+            return mDelta < other.getDelta() ? 1 : -1;
         }
 
         if(!(other instanceof SequenceNumber))
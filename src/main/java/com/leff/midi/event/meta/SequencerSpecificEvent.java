@@ -18,6 +18,7 @@ package com.leff.midi.event.meta;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 import com.leff.midi.event.MidiEvent;
 import com.leff.midi.util.MidiUtil;
@@ -29,7 +30,7 @@ public class SequencerSpecificEvent extends MetaEvent
 
     public SequencerSpecificEvent(long tick, long delta, byte[] data)
     {
-        super(tick, delta, MetaEvent.SEQUENCER_SPECIFIC, new VariableLengthInt(data.length));
+        super(tick, delta, MetaEvent.SEQUENCER_SPECIFIC, data.length);
 
         mData = data;
     }
@@ -37,7 +38,7 @@ public class SequencerSpecificEvent extends MetaEvent
     public void setData(byte[] data)
     {
         mData = data;
-        mLength.setValue(mData.length);
+        mLength = mData.length;
     }
 
     public byte[] getData()
@@ -47,7 +48,7 @@ public class SequencerSpecificEvent extends MetaEvent
 
     protected int getEventSize()
     {
-        return 1 + 1 + mLength.getByteCount() + mData.length;
+        return 1 + 1 + VariableLengthInt.encodedLength(mLength) + mData.length;
     }
 
     @Override
@@ -55,10 +56,19 @@ public class SequencerSpecificEvent extends MetaEvent
     {
         super.writeToFile(out);
 
-        out.write(mLength.getBytes());
+        VariableLengthInt.write(out, mLength);
         out.write(mData);
     }
 
+    @Override
+    protected void encode(ByteBuffer dst)
+    {
+        super.encode(dst);
+
+        VariableLengthInt.write(dst, mLength);
+        dst.put(mData);
+    }
+
     @Override
     public int compareTo(MidiEvent other)
     {
@@ -66,9 +76,9 @@ public class SequencerSpecificEvent extends MetaEvent
         {
             return mTick < other.getTick() ? -1 : 1;
         }
-        if(mDelta.getValue() != other.getDelta())
+        if(mDelta != other.getDelta())
         {
-            return mDelta.getValue() < other.getDelta() ? 1 : -1;
+            return mDelta < other.getDelta() ? 1 : -1;
         }
 
         if(!(other instanceof SequencerSpecificEvent))
@@ -18,9 +18,9 @@ package com.leff.midi.event.meta;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 import com.leff.midi.event.MidiEvent;
-import com.leff.midi.util.VariableLengthInt;
 
 public class SmpteOffset extends MetaEvent
 {
@@ -38,7 +38,7 @@ public class SmpteOffset extends MetaEvent
 
     public SmpteOffset(long tick, long delta, FrameRate fps, int hour, int min, int sec, int fr, int subfr)
     {
-        super(tick, delta, MetaEvent.SMPTE_OFFSET, new VariableLengthInt(5));
+        super(tick, delta, MetaEvent.SMPTE_OFFSET, 5);
 
         mFrameRate = fps;
         mHours = hour;
@@ -127,9 +127,22 @@ public class SmpteOffset extends MetaEvent
         out.write(mSubFrames);
     }
 
+    @Override
+    protected void encode(ByteBuffer dst)
+    {
+        super.encode(dst);
+
+        dst.put((byte) 5);
+        dst.put((byte) mHours);
+        dst.put((byte) mMinutes);
+        dst.put((byte) mSeconds);
+        dst.put((byte) mFrames);
+        dst.put((byte) mSubFrames);
+    }
+
     public static MetaEvent parseSmpteOffset(long tick, long delta, MetaEventData info)
     {
-        if(info.length.getValue() != 5)
+        if(info.length != 5)
         {
             return new GenericMetaEvent(tick, delta, info);
         }
@@ -183,9 +196,9 @@ public class SmpteOffset extends MetaEvent
         {
             return mTick < other.getTick() ? -1 : 1;
         }
-        if(mDelta.getValue() != other.getDelta())
+        if(mDelta != other.getDelta())
         {
-            return mDelta.getValue() < other.getDelta() ? 1 : -1;
+            return mDelta < other.getDelta() ? 1 : -1;
         }
 
         if(!(other instanceof SmpteOffset))
@@ -18,10 +18,10 @@ package com.leff.midi.event.meta;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 import com.leff.midi.event.MidiEvent;
 import com.leff.midi.util.MidiUtil;
-import com.leff.midi.util.VariableLengthInt;
 
 public class Tempo extends MetaEvent
 {
@@ -38,7 +38,7 @@ public class Tempo extends MetaEvent
 
     public Tempo(long tick, long delta, int mpqn)
     {
-        super(tick, delta, MetaEvent.TEMPO, new VariableLengthInt(3));
+        super(tick, delta, MetaEvent.TEMPO, 3);
 
         setMpqn(mpqn);
     }
@@ -80,9 +80,20 @@ public class Tempo extends MetaEvent
         out.write(MidiUtil.intToBytes(mMPQN, 3));
     }
 
+    @Override
+    protected void encode(ByteBuffer dst)
+    {
+        super.encode(dst);
+
+        dst.put((byte) 3);
+        dst.put((byte) (mMPQN >> 16));
+        dst.put((byte) (mMPQN >> 8));
+        dst.put((byte) mMPQN);
+    }
+
     public static MetaEvent parseTempo(long tick, long delta, MetaEventData info)
     {
-        if(info.length.getValue() != 3)
+        if(info.length != 3)
         {
             return new GenericMetaEvent(tick, delta, info);
         }
@@ -99,9 +110,9 @@ public class Tempo extends MetaEvent
         {
             return mTick < other.getTick() ? -1 : 1;
         }
-        if(mDelta.getValue() != other.getDelta())
+        if(mDelta != other.getDelta())
         {
-            return mDelta.getValue() < other.getDelta() ? 1 : -1;
+            return mDelta < other.getDelta() ? 1 : -1;
         }
 
         if(!(other instanceof Tempo))
@@ -18,6 +18,7 @@ package com.leff.midi.event.meta;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 import com.leff.midi.event.MidiEvent;
 import com.leff.midi.util.VariableLengthInt;
@@ -26,17 +27,61 @@ public abstract class TextualMetaEvent extends MetaEvent
 {
     protected String mText;
 
+    // All ASCII, so the text can be encoded one char per byte
+    private boolean mAscii;
+
+    // The text in the default charset, kept only when it isn't all ASCII so
+    // that encoding it doesn't allocate
+    private byte[] mEncoded;
+
+    // Text is written in the platform's default charset. Writing ASCII text
+    // one char per byte is only the same thing when that charset maps every
+    // ASCII char to the byte of the same value, as UTF-8 and the ISO-8859
+    // and Windows code pages do but EBCDIC and UTF-16 don't.
+    private static final boolean ASCII_COMPATIBLE = isAsciiCompatible();
+
+    private static boolean isAsciiCompatible()
+    {
+        char[] ascii = new char[0x80];
+        for(int i = 0; i < ascii.length; i++)
+        {
+            ascii[i] = (char) i;
+        }
+
+        byte[] encoded = new String(ascii).getBytes();
+        if(encoded.length != ascii.length)
+        {
+            return false;
+        }
+        for(int i = 0; i < encoded.length; i++)
+        {
+            if(encoded[i] != i)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
     protected TextualMetaEvent(long tick, long delta, int type, String text)
     {
-        super(tick, delta, type, new VariableLengthInt(text.length()));
+        super(tick, delta, type, text.length());
 
         setText(text);
     }
 
     protected void setText(String t)
     {
+        byte[] encoded = t.getBytes();
         mText = t;
-        mLength.setValue(t.getBytes().length);
+        mLength = encoded.length;
+
+        mAscii = ASCII_COMPATIBLE && mLength == t.length();
+        for(int i = 0; mAscii && i < t.length(); i++)
+        {
+            mAscii = t.charAt(i) < 0x80;
+        }
+        mEncoded = mAscii ? null : encoded;
     }
 
     protected String getText()
@@ -47,7 +92,7 @@ public abstract class TextualMetaEvent extends MetaEvent
     @Override
     protected int getEventSize()
     {
-        return 1 + 1 + mLength.getByteCount() + mLength.getValue();
+        return 1 + 1 + VariableLengthInt.encodedLength(mLength) + mLength;
     }
 
     @Override
@@ -55,8 +100,27 @@ public abstract class TextualMetaEvent extends MetaEvent
     {
         super.writeToFile(out);
 
-        out.write(mLength.getBytes());
-        out.write(mText.getBytes());
+        VariableLengthInt.write(out, mLength);
+        out.write(mAscii ? mText.getBytes() : mEncoded);
+    }
+
+    @Override
+    protected void encode(ByteBuffer dst)
+    {
+        super.encode(dst);
+
+        VariableLengthInt.write(dst, mLength);
+        if(mAscii)
+        {
+            for(int i = 0; i < mLength; i++)
+            {
+                dst.put((byte) mText.charAt(i));
+            }
+        }
+        else
+        {
+            dst.put(mEncoded);
+        }
     }
 
     @Override
@@ -66,9 +130,9 @@ public abstract class TextualMetaEvent extends MetaEvent
         {
             return mTick < other.getTick() ? -1 : 1;
         }
-        if(mDelta.getValue() != other.getDelta())
+        if(mDelta != other.getDelta())
         {
-            return mDelta.getValue() < other.getDelta() ? 1 : -1;
+            return mDelta < other.getDelta() ? 1 : -1;
         }
 
         if(!(other instanceof TextualMetaEvent))
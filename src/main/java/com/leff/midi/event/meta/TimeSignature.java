@@ -18,9 +18,9 @@ package com.leff.midi.event.meta;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 import com.leff.midi.event.MidiEvent;
-import com.leff.midi.util.VariableLengthInt;
 
 public class TimeSignature extends MetaEvent
 {
@@ -44,7 +44,7 @@ public class TimeSignature extends MetaEvent
 
     public TimeSignature(long tick, long delta, int num, int den, int meter, int div)
     {
-        super(tick, delta, MetaEvent.TIME_SIGNATURE, new VariableLengthInt(4));
+        super(tick, delta, MetaEvent.TIME_SIGNATURE, 4);
 
         setTimeSignature(num, den, meter, div);
     }
@@ -100,9 +100,21 @@ public class TimeSignature extends MetaEvent
         out.write(mDivision);
     }
 
+    @Override
+    protected void encode(ByteBuffer dst)
+    {
+        super.encode(dst);
+
+        dst.put((byte) 4);
+        dst.put((byte) mNumerator);
+        dst.put((byte) mDenominator);
+        dst.put((byte) mMeter);
+        dst.put((byte) mDivision);
+    }
+
     public static MetaEvent parseTimeSignature(long tick, long delta, MetaEventData info)
     {
-        if(info.length.getValue() != 4)
+        if(info.length != 4)
         {
             return new GenericMetaEvent(tick, delta, info);
         }
@@ -148,9 +160,9 @@ public class TimeSignature extends MetaEvent
         {
             return mTick < other.getTick() ? -1 : 1;
         }
-        if(mDelta.getValue() != other.getDelta())
+        if(mDelta != other.getDelta())
         {
-            return mDelta.getValue() < other.getDelta() ? 1 : -1;
+            return mDelta < other.getDelta() ? 1 : -1;
         }
 
         if(!(other instanceof TimeSignature))
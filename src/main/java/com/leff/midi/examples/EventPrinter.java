@@ -7,6 +7,8 @@ import com.leff.midi.MidiFile;
 import com.leff.midi.event.MidiEvent;
 import com.leff.midi.event.NoteOn;
 import com.leff.midi.event.meta.Tempo;
+import com.leff.midi.util.AsyncMidiEventListener;
+import com.leff.midi.util.AsyncMidiEventListener.OverflowPolicy;
 import com.leff.midi.util.MidiEventListener;
 import com.leff.midi.util.MidiProcessor;
 
@@ -75,8 +77,10 @@ public class EventPrinter implements MidiEventListener
         processor.registerEventListener(ep, Tempo.class);
         processor.registerEventListener(ep, NoteOn.class);
 
-        // or listen for all events:
-        EventPrinter ep2 = new EventPrinter("Listener For All");
+        // or listen for all events. Printing every event is slow, so this
+        // listener gets its own thread to keep it from holding up playback.
+        // If it falls too far behind, events are dropped rather than delayed:
+        AsyncMidiEventListener ep2 = new AsyncMidiEventListener(new EventPrinter("Listener For All"), OverflowPolicy.DROP);
         processor.registerEventListener(ep2, MidiEvent.class);
 
         // 4. Start the processor
@@ -91,9 +95,17 @@ public class EventPrinter implements MidiEventListener
 
             Thread.sleep(10 * 1000);
             processor.start();
+
+            while(processor.isRunning())
+            {
+                Thread.sleep(100);
+            }
         }
         catch(Exception e)
         {
         }
+
+        // 5. Let the async listener's thread finish once playback is over
+        ep2.close();
     }
 }
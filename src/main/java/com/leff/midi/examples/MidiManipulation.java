@@ -2,7 +2,6 @@ package com.leff.midi.examples;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Iterator;
 
 import com.leff.midi.MidiFile;
@@ -11,6 +10,7 @@ import com.leff.midi.event.MidiEvent;
 import com.leff.midi.event.NoteOff;
 import com.leff.midi.event.NoteOn;
 import com.leff.midi.event.meta.Tempo;
+import com.leff.midi.util.MidiEventFilter;
 
 public class MidiManipulation
 {
@@ -35,25 +35,14 @@ public class MidiManipulation
         // 2a. Strip out anything but notes from track 1
         MidiTrack T = mf.getTracks().get(1);
 
-        // It's a bad idea to modify a set while iterating, so we'll collect
-        // the events first, then remove them afterwards
-        Iterator<MidiEvent> it = T.getEvents().iterator();
-        ArrayList<MidiEvent> eventsToRemove = new ArrayList<MidiEvent>();
-
-        while(it.hasNext())
+        T.retainAll(new MidiEventFilter()
         {
-            MidiEvent E = it.next();
-
-            if(!E.getClass().equals(NoteOn.class) && !E.getClass().equals(NoteOff.class))
+            @Override
+            public boolean accept(MidiEvent E)
             {
-                eventsToRemove.add(E);
+                return E.getClass().equals(NoteOn.class) || E.getClass().equals(NoteOff.class);
             }
-        }
-
-        for(MidiEvent E : eventsToRemove)
-        {
-            T.removeEvent(E);
-        }
+        });
 
         // 2b. Completely remove track 2
         mf.removeTrack(2);
@@ -61,7 +50,7 @@ public class MidiManipulation
         // 2c. Reduce the tempo by half
         T = mf.getTracks().get(0);
 
-        it = T.getEvents().iterator();
+        Iterator<MidiEvent> it = T.getEvents().iterator();
         while(it.hasNext())
         {
             MidiEvent E = it.next();
@@ -0,0 +1,353 @@
+//////////////////////////////////////////////////////////////////////////////
+//	Copyright 2011 Alex Leffelman
+//	
+//	Licensed under the Apache License, Version 2.0 (the "License");
+//	you may not use this file except in compliance with the License.
+//	You may obtain a copy of the License at
+//	
+//	http://www.apache.org/licenses/LICENSE-2.0
+//	
+//	Unless required by applicable law or agreed to in writing, software
+//	distributed under the License is distributed on an "AS IS" BASIS,
+//	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//	See the License for the specific language governing permissions and
+//	limitations under the License.
+//////////////////////////////////////////////////////////////////////////////
+
+package com.leff.midi.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import com.leff.midi.event.MidiEvent;
+
+/**
+ * Wraps a MidiEventListener so that its callbacks run on a thread of their
+ * own. The MidiProcessor thread only copies each callback into a slot of a
+ * preallocated ring buffer, so a slow listener can't delay the events that
+ * follow. Register the wrapper in place of the listener.
+ * <p>
+ * Callbacks are delivered in order. The buffer has a single producer, so a
+ * wrapper must only be registered with one MidiProcessor at a time. Note
+ * that the processor passes the same MetronomeTick object for every beat,
+ * so by the time the listener sees it, it may have moved on.
+ */
+public class AsyncMidiEventListener implements MidiEventListener
+{
+    public enum OverflowPolicy
+    {
+        /** Discard events that arrive while the buffer is full */
+        DROP,
+        /** Make the processor thread wait for room in the buffer */
+        BLOCK,
+        /**
+         * Keep only the latest of the events that arrive while the buffer is
+         * full, and deliver it once the buffer has drained
+         */
+        COALESCE
+    }
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private static final byte EVENT = 0;
+    private static final byte START = 1;
+    private static final byte STOP = 2;
+
+    // Set in mMiddle while its holder hasn't been delivered
+    private static final int PENDING = 4;
+
+    // How long the processor thread parks at a time while waiting for room
+    private static final long WAIT_NANOS = 100000;
+
+    private final MidiEventListener mListener;
+    private final OverflowPolicy mPolicy;
+
+    // The ring buffer. Slot i holds a callback kind, its event, and its ms
+    // (or the start/stop flag). Only the processor thread writes mTail and
+    // only the consumer thread writes mHead.
+    private final int mMask;
+    private final byte[] mKinds;
+    private final MidiEvent[] mEvents;
+    private final long[] mValues;
+    private volatile long mHead;
+    private volatile long mTail;
+
+    // The COALESCE slot, a triple buffer over three preallocated holders.
+    // The producer fills mBack and swaps it into mMiddle, flagged PENDING;
+    // the consumer swaps a pending mMiddle out into mFront. While an event
+    // is pending, later events replace it instead of going into the ring,
+    // and the consumer only takes it once the ring is empty, so it is still
+    // delivered in order. Neither side ever waits for the other.
+    private final MidiEvent[] mCoalescedEvents = new MidiEvent[3];
+    private final long[] mCoalescedMs = new long[3];
+    private final AtomicInteger mMiddle = new AtomicInteger(1);
+    private int mBack = 0;
+    private int mFront = 2;
+
+    private volatile long mDroppedCount;
+    private volatile boolean mConsumerParked;
+    private volatile boolean mClosed;
+    private final Thread mThread;
+
+    public AsyncMidiEventListener(MidiEventListener listener, OverflowPolicy policy)
+    {
+        this(listener, DEFAULT_CAPACITY, policy, new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "AsyncMidiEventListener");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @param capacity
+     *            the number of callbacks that can be queued, rounded up to a
+     *            power of two
+     * @param threadFactory
+     *            creates the thread that calls the listener
+     */
+    public AsyncMidiEventListener(MidiEventListener listener, int capacity, OverflowPolicy policy, ThreadFactory threadFactory)
+    {
+        if(capacity < 1)
+        {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+
+        int size = Integer.highestOneBit(capacity);
+        if(size < capacity)
+        {
+            size <<= 1;
+        }
+
+        mListener = listener;
+        mPolicy = policy;
+
+        mMask = size - 1;
+        mKinds = new byte[size];
+        mEvents = new MidiEvent[size];
+        mValues = new long[size];
+
+        mThread = threadFactory.newThread(new Runnable()
+        {
+            public void run()
+            {
+                consume();
+            }
+        });
+        mThread.start();
+    }
+
+    public MidiEventListener getListener()
+    {
+        return mListener;
+    }
+
+    public OverflowPolicy getOverflowPolicy()
+    {
+        return mPolicy;
+    }
+
+    /**
+     * @return how many events were discarded because the buffer was full
+     */
+    public long getDroppedCount()
+    {
+        return mDroppedCount;
+    }
+
+    /**
+     * Stops the consumer thread once the callbacks already queued have been
+     * delivered. Callbacks made after this are ignored.
+     */
+    public void close()
+    {
+        mClosed = true;
+        LockSupport.unpark(mThread);
+    }
+
+    @Override
+    public void onStart(boolean fromBeginning)
+    {
+        putInOrder(START, fromBeginning ? 1 : 0);
+    }
+
+    @Override
+    public void onEvent(MidiEvent event, long ms)
+    {
+        if(mClosed)
+        {
+            return;
+        }
+
+        switch(mPolicy)
+        {
+            case DROP:
+                if(!offer(EVENT, event, ms))
+                {
+                    mDroppedCount++;
+                }
+                break;
+            case BLOCK:
+                put(EVENT, event, ms);
+                break;
+            case COALESCE:
+                if(hasPending() || !offer(EVENT, event, ms))
+                {
+                    coalesce(event, ms);
+                }
+                break;
+        }
+    }
+
+    @Override
+    public void onStop(boolean finished)
+    {
+        putInOrder(STOP, finished ? 1 : 0);
+    }
+
+    /**
+     * Publishes a callback into the next free slot, if there is one.
+     */
+    private boolean offer(byte kind, MidiEvent event, long value)
+    {
+        long tail = mTail;
+        if(tail - mHead > mMask)
+        {
+            return false;
+        }
+
+        int i = (int) tail & mMask;
+        mKinds[i] = kind;
+        mEvents[i] = event;
+        mValues[i] = value;
+        mTail = tail + 1;
+
+        if(mConsumerParked)
+        {
+            LockSupport.unpark(mThread);
+        }
+        return true;
+    }
+
+    /**
+     * Waits for a free slot and publishes a callback into it. Gives up if
+     * the wrapper is closed or its thread has died.
+     */
+    private void put(byte kind, MidiEvent event, long value)
+    {
+        while(!offer(kind, event, value))
+        {
+            if(mClosed || !mThread.isAlive())
+            {
+                mDroppedCount++;
+                return;
+            }
+            LockSupport.parkNanos(WAIT_NANOS);
+        }
+    }
+
+    /**
+     * Start and stop are never dropped or coalesced, so they wait for any
+     * pending event to be delivered first.
+     */
+    private void putInOrder(byte kind, long value)
+    {
+        while(hasPending() && !mClosed && mThread.isAlive())
+        {
+            LockSupport.parkNanos(WAIT_NANOS);
+        }
+        if(!mClosed)
+        {
+            put(kind, null, value);
+        }
+    }
+
+    private void coalesce(MidiEvent event, long ms)
+    {
+        mCoalescedEvents[mBack] = event;
+        mCoalescedMs[mBack] = ms;
+
+        int replaced = mMiddle.getAndSet(mBack | PENDING);
+        if((replaced & PENDING) != 0)
+        {
+            mDroppedCount++;
+        }
+        mBack = replaced & ~PENDING;
+
+        if(mConsumerParked)
+        {
+            LockSupport.unpark(mThread);
+        }
+    }
+
+    private boolean hasPending()
+    {
+        return (mMiddle.get() & PENDING) != 0;
+    }
+
+    private void consume()
+    {
+        while(true)
+        {
+            // Read before mTail: once an event is pending, nothing more is
+            // added to the ring until the consumer takes it
+            boolean pending = hasPending();
+
+            long head = mHead;
+            if(head != mTail)
+            {
+                int i = (int) head & mMask;
+                byte kind = mKinds[i];
+                MidiEvent event = mEvents[i];
+                long value = mValues[i];
+
+                mEvents[i] = null;
+                mHead = head + 1;
+
+                deliver(kind, event, value);
+            }
+            else if(pending)
+            {
+                mFront = mMiddle.getAndSet(mFront) & ~PENDING;
+
+                MidiEvent event = mCoalescedEvents[mFront];
+                mCoalescedEvents[mFront] = null;
+
+                mListener.onEvent(event, mCoalescedMs[mFront]);
+            }
+            else if(mClosed)
+            {
+                return;
+            }
+            else
+            {
+                mConsumerParked = true;
+                if(mHead == mTail && !hasPending() && !mClosed)
+                {
+                    LockSupport.park();
+                }
+                mConsumerParked = false;
+            }
+        }
+    }
+
+    private void deliver(byte kind, MidiEvent event, long value)
+    {
+        switch(kind)
+        {
+            case START:
+                mListener.onStart(value != 0);
+                break;
+            case STOP:
+                mListener.onStop(value != 0);
+                break;
+            default:
+                mListener.onEvent(event, value);
+                break;
+        }
+    }
+}
@@ -56,6 +56,20 @@ public class MetronomeTick extends MidiEvent
         return false;
     }
 
+    /**
+     * @return how many more ticks must elapse before update() reports the
+     *         next beat, or infinity if the meter is not one the metronome
+     *         knows
+     */
+    public double getTicksToNextBeat()
+    {
+        if(mMetronomeFrequency <= 0)
+        {
+            return Double.POSITIVE_INFINITY;
+        }
+        return Math.max(mMetronomeFrequency - mMetronomeProgress, 0);
+    }
+
     public void setMetronomeFrequency(int meter)
     {
         switch(meter)
@@ -17,12 +17,14 @@
 package com.leff.midi.util;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
 
+import com.leff.midi.MergedEventIterator;
 import com.leff.midi.MidiFile;
-import com.leff.midi.MidiTrack;
 import com.leff.midi.event.MidiEvent;
 import com.leff.midi.event.meta.Tempo;
 import com.leff.midi.event.meta.TimeSignature;
@@ -31,19 +33,40 @@ public class MidiProcessor
 {
     private static final int PROCESS_RATE_MS = 8;
 
+    // In high precision mode, the thread parks until this long before an
+    // event is due and spins for the rest, since parking can overshoot.
+    private static final long SPIN_NANOS = 200000;
+
+    private static final int TEMPO_ID = MidiEvent.typeIdOf(Tempo.class);
+    private static final int TIME_SIGNATURE_ID = MidiEvent.typeIdOf(TimeSignature.class);
+
+    // Only touched while holding the processor's lock. Every change
+    // publishes a new mRegistry for the processor thread to read.
     private HashMap<Class<? extends MidiEvent>, List<MidiEventListener>> mEventsToListeners;
     private HashMap<MidiEventListener, List<Class<? extends MidiEvent>>> mListenersToEvents;
 
+    private volatile ListenerRegistry mRegistry;
+
     private MidiFile mMidiFile;
-    private boolean mRunning;
+    private volatile boolean mRunning;
+    private volatile Thread mThread;
     private double mTicksElapsed;
     private long mMsElapsed;
 
+    private boolean mHighPrecision;
+
+    // High precision mode measures time from this anchor: the nanoTime at
+    // which the playback position was mAnchorTick. It only moves on tempo
+    // changes, to the exact time of the change, so rounding never adds up.
+    private long mAnchorNanos;
+    private double mAnchorTick;
+
     private int mMPQN;
     private int mPPQ;
 
     private MetronomeTick mMetronome;
-    private MidiTrackEventQueue[] mEventQueues;
+    // The events of all tracks, in tick order
+    private MergedEventIterator mEvents;
 
     public MidiProcessor(MidiFile input)
     {
@@ -55,6 +78,7 @@ public class MidiProcessor
 
         mEventsToListeners = new HashMap<Class<? extends MidiEvent>, List<MidiEventListener>>();
         mListenersToEvents = new HashMap<MidiEventListener, List<Class<? extends MidiEvent>>>();
+        publishRegistry();
 
         mMetronome = new MetronomeTick(new TimeSignature(), mPPQ);
 
@@ -67,18 +91,33 @@ public class MidiProcessor
             return;
 
         mRunning = true;
-        new Thread(new Runnable()
+        mThread = new Thread(new Runnable()
         {
             public void run()
             {
-                process();
+                if(mHighPrecision)
+                {
+                    processHighPrecision();
+                }
+                else
+                {
+                    process();
+                }
             }
-        }).start();
+        });
+        mThread.start();
     }
 
     public void stop()
     {
         mRunning = false;
+
+        // Wake the processor thread if it is waiting for the next event
+        Thread thread = mThread;
+        if(thread != null)
+        {
+            LockSupport.unpark(thread);
+        }
     }
 
     public void reset()
@@ -90,17 +129,7 @@ public class MidiProcessor
 
         mMetronome.setTimeSignature(new TimeSignature());
 
-        List<MidiTrack> tracks = mMidiFile.getTracks();
-
-        if(mEventQueues == null)
-        {
-            mEventQueues = new MidiTrackEventQueue[tracks.size()];
-        }
-
-        for(int i = 0; i < tracks.size(); i++)
-        {
-            mEventQueues[i] = new MidiTrackEventQueue(tracks.get(i));
-        }
+        mEvents = mMidiFile.mergedEvents();
     }
 
     public boolean isStarted()
@@ -113,33 +142,41 @@ public class MidiProcessor
         return mRunning;
     }
 
-    protected void onStart(boolean fromBeginning)
+    /**
+     * In high precision mode, timing is based on System.nanoTime() instead
+     * of millisecond polling. The processor parks until an event is due,
+     * spins for the last fraction of a millisecond, and derives the playback
+     * position from a fixed start time so that errors don't accumulate.
+     * This costs more CPU time. Takes effect the next time the processor is
+     * started.
+     */
+    public void setHighPrecision(boolean highPrecision)
     {
+        mHighPrecision = highPrecision;
+    }
 
-        Iterator<MidiEventListener> it = mListenersToEvents.keySet().iterator();
+    public boolean isHighPrecision()
+    {
+        return mHighPrecision;
+    }
 
-        while(it.hasNext())
+    protected void onStart(boolean fromBeginning)
+    {
+        for(MidiEventListener mel : mRegistry.mListeners)
         {
-
-            MidiEventListener mel = it.next();
             mel.onStart(fromBeginning);
         }
     }
 
     protected void onStop(boolean finished)
     {
-
-        Iterator<MidiEventListener> it = mListenersToEvents.keySet().iterator();
-
-        while(it.hasNext())
+        for(MidiEventListener mel : mRegistry.mListeners)
         {
-
-            MidiEventListener mel = it.next();
             mel.onStop(finished);
         }
     }
 
-    public void registerEventListener(MidiEventListener mel, Class<? extends MidiEvent> event)
+    public synchronized void registerEventListener(MidiEventListener mel, Class<? extends MidiEvent> event)
     {
 
         List<MidiEventListener> listeners = mEventsToListeners.get(event);
@@ -167,9 +204,11 @@ public class MidiProcessor
         {
             events.add(event);
         }
+
+        publishRegistry();
     }
 
-    public void unregisterEventListener(MidiEventListener mel)
+    public synchronized void unregisterEventListener(MidiEventListener mel)
     {
 
         List<Class<? extends MidiEvent>> events = mListenersToEvents.get(mel);
@@ -186,9 +225,10 @@ public class MidiProcessor
         }
 
         mListenersToEvents.remove(mel);
+        publishRegistry();
     }
 
-    public void unregisterEventListener(MidiEventListener mel, Class<? extends MidiEvent> event)
+    public synchronized void unregisterEventListener(MidiEventListener mel, Class<? extends MidiEvent> event)
     {
 
         List<MidiEventListener> listeners = mEventsToListeners.get(event);
@@ -202,23 +242,70 @@ public class MidiProcessor
         {
             events.remove(event);
         }
+
+        publishRegistry();
     }
 
-    public void unregisterAllEventListeners()
+    public synchronized void unregisterAllEventListeners()
     {
         mEventsToListeners.clear();
         mListenersToEvents.clear();
+        publishRegistry();
+    }
+
+    private void publishRegistry()
+    {
+        MidiEventListener[] all = toArray(mEventsToListeners.get(MidiEvent.class), null);
+
+        // Make sure every registered class has an id before sizing the table
+        for(Class<? extends MidiEvent> type : mEventsToListeners.keySet())
+        {
+            MidiEvent.typeIdOf(type);
+        }
+
+        MidiEventListener[][] table = new MidiEventListener[MidiEvent.getTypeIdCount()][];
+        Arrays.fill(table, all);
+
+        for(Map.Entry<Class<? extends MidiEvent>, List<MidiEventListener>> entry : mEventsToListeners.entrySet())
+        {
+            if(!entry.getKey().equals(MidiEvent.class))
+            {
+                table[MidiEvent.typeIdOf(entry.getKey())] = toArray(entry.getValue(), all);
+            }
+        }
+
+        MidiEventListener[] listeners = mListenersToEvents.keySet().toArray(new MidiEventListener[mListenersToEvents.size()]);
+
+        mRegistry = new ListenerRegistry(table, all, listeners);
+    }
+
+    private static MidiEventListener[] toArray(List<MidiEventListener> listeners, MidiEventListener[] tail)
+    {
+        int count = listeners == null ? 0 : listeners.size();
+        int tailCount = tail == null ? 0 : tail.length;
+
+        MidiEventListener[] array = new MidiEventListener[count + tailCount];
+        for(int i = 0; i < count; i++)
+        {
+            array[i] = listeners.get(i);
+        }
+        if(tail != null)
+        {
+            System.arraycopy(tail, 0, array, count, tailCount);
+        }
+        return array;
     }
 
     protected void dispatch(MidiEvent event)
     {
+        int id = event.getTypeId();
 
         // Tempo and Time Signature events are always needed by the processor
-        if(event.getClass().equals(Tempo.class))
+        if(id == TEMPO_ID)
         {
             mMPQN = ((Tempo) event).getMpqn();
         }
-        else if(event.getClass().equals(TimeSignature.class))
+        else if(id == TIME_SIGNATURE_ID)
         {
 
             boolean shouldDispatch = mMetronome.getBeatNumber() != 1;
@@ -230,23 +317,13 @@ public class MidiProcessor
             }
         }
 
-        this.sendOnEventForClass(event, event.getClass());
-        this.sendOnEventForClass(event, MidiEvent.class);
-    }
-
-    private void sendOnEventForClass(MidiEvent event, Class<? extends MidiEvent> eventClass)
-    {
-
-        List<MidiEventListener> listeners = mEventsToListeners.get(eventClass);
-
-        if(listeners == null)
-        {
-            return;
-        }
+        ListenerRegistry registry = mRegistry;
+        MidiEventListener[][] table = registry.mDispatchTable;
+        MidiEventListener[] listeners = id < table.length ? table[id] : registry.mAllEventsListeners;
 
-        for(MidiEventListener mel : listeners)
+        for(int i = 0; i < listeners.length; i++)
         {
-            mel.onEvent(event, mMsElapsed);
+            listeners[i].onEvent(event, mMsElapsed);
         }
     }
 
@@ -267,13 +344,7 @@ public class MidiProcessor
 
             if(msElapsed < PROCESS_RATE_MS)
             {
-                try
-                {
-                    Thread.sleep(PROCESS_RATE_MS - msElapsed);
-                }
-                catch(Exception e)
-                {
-                }
+                LockSupport.parkNanos((PROCESS_RATE_MS - msElapsed) * 1000000L);
                 continue;
             }
 
@@ -293,94 +364,154 @@ public class MidiProcessor
             mMsElapsed += msElapsed;
             mTicksElapsed += ticksElapsed;
 
-            boolean more = false;
-            for(int i = 0; i < mEventQueues.length; i++)
+            // Only the tracks with events that are due get touched
+            while(mEvents.hasNext() && mEvents.peek().getTick() <= mTicksElapsed)
             {
-
-                MidiTrackEventQueue queue = mEventQueues[i];
-                if(!queue.hasMoreEvents())
-                {
-                    continue;
-                }
-
-                ArrayList<MidiEvent> events = queue.getNextEventsUpToTick(mTicksElapsed);
-                for(MidiEvent event : events)
-                {
-                    this.dispatch(event);
-                }
-
-                if(queue.hasMoreEvents())
-                {
-                    more = true;
-                }
+                this.dispatch(mEvents.next());
             }
 
-            if(!more)
+            if(!mEvents.hasNext())
             {
                 finished = true;
                 break;
             }
+
+            // Nothing happens before the next event or metronome beat, so
+            // sleep until then instead of polling every PROCESS_RATE_MS
+            long idleMs = (long) (ticksUntilNextDue() * mMPQN / (mPPQ * 1000.0)) - PROCESS_RATE_MS;
+            if(idleMs > 0)
+            {
+                LockSupport.parkNanos(idleMs * 1000000L);
+            }
         }
 
         mRunning = false;
         onStop(finished);
     }
 
-    private class MidiTrackEventQueue
+    private void processHighPrecision()
     {
+        onStart(mTicksElapsed < 1);
 
-        private MidiTrack mTrack;
-        private Iterator<MidiEvent> mIterator;
-        private ArrayList<MidiEvent> mEventsToDispatch;
-        private MidiEvent mNext;
-
-        public MidiTrackEventQueue(MidiTrack track)
-        {
+        long startNanos = System.nanoTime();
+        long startMs = mMsElapsed;
 
-            mTrack = track;
+        mAnchorNanos = startNanos;
+        mAnchorTick = mTicksElapsed;
 
-            mIterator = mTrack.getEvents().iterator();
-            mEventsToDispatch = new ArrayList<MidiEvent>();
+        boolean finished = false;
 
-            if(mIterator.hasNext())
+        while(mRunning)
+        {
+            if(!mEvents.hasNext())
             {
-                mNext = mIterator.next();
+                finished = true;
+                break;
             }
-        }
 
-        public ArrayList<MidiEvent> getNextEventsUpToTick(double tick)
-        {
+            waitUntil(nanosAtTick(mTicksElapsed + ticksUntilNextDue()));
 
-            mEventsToDispatch.clear();
+            long now = System.nanoTime();
+            double tick = tickAtNanos(now);
 
-            while(mNext != null)
+            if(tick > mTicksElapsed)
             {
+                if(mMetronome.update(tick - mTicksElapsed))
+                {
+                    dispatch(mMetronome);
+                }
+                mTicksElapsed = tick;
+            }
+            mMsElapsed = startMs + (now - startNanos) / 1000000;
+
+            while(mRunning && mEvents.hasNext() && mEvents.peek().getTick() <= tick)
+            {
+                MidiEvent event = mEvents.next();
 
-                if(mNext.getTick() <= tick)
+                if(event.getTypeId() == TEMPO_ID)
                 {
-                    mEventsToDispatch.add(mNext);
-
-                    if(mIterator.hasNext())
-                    {
-                        mNext = mIterator.next();
-                    }
-                    else
-                    {
-                        mNext = null;
-                    }
+                    // Re-anchor at the exact time of the tempo change before
+                    // dispatch() switches to the new tempo
+                    mAnchorNanos = nanosAtTick(event.getTick());
+                    mAnchorTick = event.getTick();
+                    dispatch(event);
+
+                    tick = Math.max(tickAtNanos(now), mTicksElapsed);
+                    mTicksElapsed = tick;
                 }
                 else
                 {
-                    break;
+                    dispatch(event);
                 }
             }
+        }
+
+        mRunning = false;
+        onStop(finished);
+    }
+
+    private long nanosAtTick(double tick)
+    {
+        return mAnchorNanos + (long) ((tick - mAnchorTick) * mMPQN * 1000.0 / mPPQ);
+    }
+
+    private double tickAtNanos(long nanos)
+    {
+        return mAnchorTick + (nanos - mAnchorNanos) * (double) mPPQ / (mMPQN * 1000.0);
+    }
 
-            return mEventsToDispatch;
+    /**
+     * Waits until the given nanoTime, or until stop() is called.
+     */
+    private void waitUntil(long deadline)
+    {
+        long remaining;
+        while(mRunning && (remaining = deadline - System.nanoTime()) > SPIN_NANOS)
+        {
+            LockSupport.parkNanos(remaining - SPIN_NANOS);
+        }
+        while(mRunning && System.nanoTime() - deadline < 0)
+        {
+            // spin
+        }
+    }
+
+    /**
+     * @return how many ticks after the current position the next event or
+     *         metronome beat is due
+     */
+    private double ticksUntilNextDue()
+    {
+        double ticks = mMetronome.getTicksToNextBeat();
+
+        if(mEvents.hasNext())
+        {
+            ticks = Math.min(ticks, mEvents.peek().getTick() - mTicksElapsed);
         }
+        return Math.max(ticks, 0);
+    }
+
+    /**
+     * An immutable snapshot of the registered listeners. Registering or
+     * unregistering builds a new one, so the processor thread can dispatch
+     * from it without locking while listeners come and go.
+     */
+    private static class ListenerRegistry
+    {
+        // The listeners to call for each event type id: those registered for
+        // that class, then those registered for MidiEvent. Ids beyond the
+        // table have no listeners of their own and use mAllEventsListeners.
+        final MidiEventListener[][] mDispatchTable;
+        final MidiEventListener[] mAllEventsListeners;
+
+        // Every registered listener, once
+        final MidiEventListener[] mListeners;
 
-        public boolean hasMoreEvents()
+        ListenerRegistry(MidiEventListener[][] dispatchTable, MidiEventListener[] allEventsListeners, MidiEventListener[] listeners)
         {
-            return mNext != null;
+            mDispatchTable = dispatchTable;
+            mAllEventsListeners = allEventsListeners;
+            mListeners = listeners;
         }
     }
 }
@@ -16,6 +16,8 @@
 
 package com.leff.midi.util;
 
+import java.nio.ByteBuffer;
+
 public class MidiUtil
 {
     /**
@@ -107,6 +109,28 @@ public class MidiUtil
         return true;
     }
 
+    /**
+     * Reads one unsigned byte like InputStream.read(), returning -1 instead
+     * of throwing when the buffer is used up.
+     */
+    public static int read(ByteBuffer in)
+    {
+        return in.hasRemaining() ? in.get() & 0xFF : -1;
+    }
+
+    /**
+     * Fills as much of the array as the buffer has bytes for, like
+     * InputStream.read(byte[]). The rest of the array is left as it was.
+     * 
+     * @return the number of bytes read
+     */
+    public static int read(ByteBuffer in, byte[] dst)
+    {
+        int count = Math.min(dst.length, in.remaining());
+        in.get(dst, 0, count);
+        return count;
+    }
+
     public static byte[] extractBytes(byte[] buffer, int off, int len)
     {
         byte[] ret = new byte[len];
@@ -0,0 +1,233 @@
+//////////////////////////////////////////////////////////////////////////////
+//	Copyright 2011 Alex Leffelman
+//	
+//	Licensed under the Apache License, Version 2.0 (the "License");
+//	you may not use this file except in compliance with the License.
+//	You may obtain a copy of the License at
+//	
+//	http://www.apache.org/licenses/LICENSE-2.0
+//	
+//	Unless required by applicable law or agreed to in writing, software
+//	distributed under the License is distributed on an "AS IS" BASIS,
+//	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//	See the License for the specific language governing permissions and
+//	limitations under the License.
+//////////////////////////////////////////////////////////////////////////////
+
+
+package com.leff.midi.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import com.leff.midi.MidiFile;
+import com.leff.midi.MidiTrack;
+import com.leff.midi.event.MidiEvent;
+import com.leff.midi.event.meta.Tempo;
+
+/**
+ * Converts between ticks and time across tempo changes. The tempo events are
+ * split into segments of constant tempo up front, so each conversion is a
+ * binary search over the segments.
+ * <p>
+ * Time before the first tempo event runs at {@link Tempo#DEFAULT_MPQN}. When
+ * several tempo events share a tick, the last one wins.
+ */
+public class TempoMap
+{
+    private final int mResolution;
+
+    // Segment i starts at mTicks[i] and runs at mMpqn[i] microseconds per
+    // quarter note. mScaledMicros[i] is the time at its start, in
+    // microseconds multiplied by the resolution so that it stays exact.
+    private final long[] mTicks;
+    private final int[] mMpqn;
+    private final long[] mScaledMicros;
+
+    public TempoMap(MidiFile file)
+    {
+        this(file.getResolution(), collectTempos(file));
+    }
+
+    public TempoMap(int resolution, Collection<Tempo> tempos)
+    {
+        mResolution = resolution;
+
+        List<Tempo> sorted = new ArrayList<Tempo>(tempos);
+        Collections.sort(sorted, new Comparator<Tempo>()
+        {
+            @Override
+            public int compare(Tempo a, Tempo b)
+            {
+                return a.getTick() < b.getTick() ? -1 : (a.getTick() == b.getTick() ? 0 : 1);
+            }
+        });
+
+        long[] ticks = new long[sorted.size() + 1];
+        int[] mpqn = new int[sorted.size() + 1];
+        int count = 1;
+
+        ticks[0] = 0;
+        mpqn[0] = Tempo.DEFAULT_MPQN;
+
+        for(Tempo T : sorted)
+        {
+            if(T.getTick() == ticks[count - 1])
+            {
+                mpqn[count - 1] = T.getMpqn();
+            }
+            else
+            {
+                ticks[count] = T.getTick();
+                mpqn[count] = T.getMpqn();
+                count++;
+            }
+        }
+
+        mTicks = new long[count];
+        mMpqn = new int[count];
+        mScaledMicros = new long[count];
+
+        System.arraycopy(ticks, 0, mTicks, 0, count);
+        System.arraycopy(mpqn, 0, mMpqn, 0, count);
+        for(int i = 1; i < count; i++)
+        {
+            mScaledMicros[i] = mScaledMicros[i - 1] + (mTicks[i] - mTicks[i - 1]) * mMpqn[i - 1];
+        }
+    }
+
+    private static List<Tempo> collectTempos(MidiFile file)
+    {
+        List<Tempo> tempos = new ArrayList<Tempo>();
+        for(MidiTrack T : file.getTracks())
+        {
+            // A plain scan: a tick range query would build and cache an
+            // index on every track just for this one pass
+            for(MidiEvent E : T.getEvents())
+            {
+                if(E instanceof Tempo)
+                {
+                    tempos.add((Tempo) E);
+                }
+            }
+        }
+        return tempos;
+    }
+
+    public int getResolution()
+    {
+        return mResolution;
+    }
+
+    public int getSegmentCount()
+    {
+        return mTicks.length;
+    }
+
+    /**
+     * @return the tempo in effect at the given tick, in microseconds per
+     *         quarter note
+     */
+    public int getMpqnAt(long tick)
+    {
+        return mMpqn[segmentAtTick(tick)];
+    }
+
+    public long ticksToMicros(long tick)
+    {
+        int i = segmentAtTick(tick);
+        return (mScaledMicros[i] + (tick - mTicks[i]) * mMpqn[i]) / mResolution;
+    }
+
+    public double ticksToMicros(double tick)
+    {
+        int i = segmentAtTick((long) Math.floor(tick));
+        return (mScaledMicros[i] + (tick - mTicks[i]) * mMpqn[i]) / mResolution;
+    }
+
+    public long ticksToMs(long tick)
+    {
+        return ticksToMicros(tick) / 1000;
+    }
+
+    /**
+     * Converts an array of ticks at once. Runs of ascending ticks, such as
+     * the ticks of a track's events, are converted by walking the segments
+     * instead of searching them for each tick.
+     */
+    public void ticksToMicros(long[] ticks, long[] micros)
+    {
+        if(micros.length < ticks.length)
+        {
+            throw new IllegalArgumentException("Output array is shorter than the input array");
+        }
+
+        int i = 0;
+        long last = Long.MIN_VALUE;
+
+        for(int k = 0; k < ticks.length; k++)
+        {
+            long tick = ticks[k];
+            if(tick < last)
+            {
+                i = segmentAtTick(tick);
+            }
+            else
+            {
+                while(i + 1 < mTicks.length && mTicks[i + 1] <= tick)
+                {
+                    i++;
+                }
+            }
+            last = tick;
+
+            micros[k] = (mScaledMicros[i] + (tick - mTicks[i]) * mMpqn[i]) / mResolution;
+        }
+    }
+
+    public double microsToTicks(long micros)
+    {
+        long scaled = micros * mResolution;
+
+        int i = lastAtOrBefore(mScaledMicros, scaled);
+        if(mMpqn[i] <= 0)
+        {
+            return mTicks[i];
+        }
+        return mTicks[i] + (double) (scaled - mScaledMicros[i]) / mMpqn[i];
+    }
+
+    public double msToTicks(long ms)
+    {
+        return microsToTicks(ms * 1000);
+    }
+
+    private int segmentAtTick(long tick)
+    {
+        return lastAtOrBefore(mTicks, tick);
+    }
+
+    /**
+     * @return the last index whose value is <= key, or 0 if there is none
+     */
+    private static int lastAtOrBefore(long[] values, long key)
+    {
+        int lo = 0, hi = values.length;
+        while(lo < hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if(values[mid] <= key)
+            {
+                lo = mid + 1;
+            }
+            else
+            {
+                hi = mid;
+            }
+        }
+        return Math.max(lo - 1, 0);
+    }
+}
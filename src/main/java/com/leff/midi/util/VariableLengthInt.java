@@ -18,9 +18,21 @@ package com.leff.midi.util;
 
 import java.io.IOException;
 import java.io.InputStream;
-
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A MIDI variable-length quantity: 7 bits per byte, most significant first,
+ * with the high bit set on every byte but the last. Values use at most 4
+ * bytes.
+ * <p>
+ * The static methods read and write values directly, without creating a
+ * VariableLengthInt or any byte arrays.
+ */
 public class VariableLengthInt
 {
+    public static final int MAX_BYTES = 4;
+
     private int mValue;
     private byte[] mBytes;
     private int mSizeInBytes;
@@ -32,7 +44,12 @@ public class VariableLengthInt
 
     public VariableLengthInt(InputStream in) throws IOException
     {
-        parseBytes(in);
+        setValue(read(in));
+    }
+
+    public VariableLengthInt(ByteBuffer in)
+    {
+        setValue(read(in));
     }
 
     public void setValue(int value)
@@ -56,77 +73,90 @@ public class VariableLengthInt
         return mBytes;
     }
 
-    private void parseBytes(InputStream in) throws IOException
+    private void buildBytes()
     {
-        int[] ints = new int[4];
+        mSizeInBytes = encodedLength(mValue);
+        mBytes = new byte[mSizeInBytes];
 
-        mSizeInBytes = 0;
-        mValue = 0;
-        int shift = 0;
+        for(int i = 0; i < mSizeInBytes; i++)
+        {
+            mBytes[i] = encodedByte(mValue, i, mSizeInBytes);
+        }
+    }
 
-        int b = in.read();
-        while(mSizeInBytes < 4)
+    public static int read(InputStream in) throws IOException
+    {
+        int value = 0;
+        for(int i = 0; i < MAX_BYTES; i++)
         {
-            mSizeInBytes++;
-            
-            boolean variable = (b & 0x80) > 0;
-            if(!variable)
+            int b = in.read();
+            if(b < 0)
             {
-                ints[mSizeInBytes - 1] = (b & 0x7F);
                 break;
             }
-            ints[mSizeInBytes - 1] = (b & 0x7F);
 
-            b = in.read();
-        }
-
-        for(int i = 1; i < mSizeInBytes; i++)
-        {
-            shift += 7;
+            value = (value << 7) + (b & 0x7F);
+            if((b & 0x80) == 0)
+            {
+                break;
+            }
         }
+        return value;
+    }
 
-        mBytes = new byte[mSizeInBytes];
-        for(int i = 0; i < mSizeInBytes; i++)
+    public static int read(ByteBuffer in)
+    {
+        int value = 0;
+        for(int i = 0; i < MAX_BYTES && in.hasRemaining(); i++)
         {
-            mBytes[i] = (byte) ints[i];
+            int b = in.get() & 0xFF;
 
-            mValue += ints[i] << shift;
-            shift -= 7;
+            value = (value << 7) + (b & 0x7F);
+            if((b & 0x80) == 0)
+            {
+                break;
+            }
         }
+        return value;
     }
 
-    private void buildBytes()
+    public static void write(OutputStream out, int value) throws IOException
     {
-        if(mValue == 0)
+        int length = encodedLength(value);
+        for(int i = 0; i < length; i++)
         {
-            mBytes = new byte[1];
-            mBytes[0] = 0x00;
-            mSizeInBytes = 1;
-            return;
+            out.write(encodedByte(value, i, length));
         }
+    }
 
-        mSizeInBytes = 0;
-        int[] vals = new int[4];
-        int tmpVal = mValue;
-
-        while(mSizeInBytes < 4 && tmpVal > 0)
+    public static void write(ByteBuffer out, int value)
+    {
+        int length = encodedLength(value);
+        for(int i = 0; i < length; i++)
         {
-            vals[mSizeInBytes] = tmpVal & 0x7F;
-
-            mSizeInBytes++;
-            tmpVal = tmpVal >> 7;
+            out.put(encodedByte(value, i, length));
         }
+    }
 
-        for(int i = 1; i < mSizeInBytes; i++)
+    /**
+     * @return the number of bytes the value takes when encoded, from 1 to 4
+     */
+    public static int encodedLength(int value)
+    {
+        int length = 1;
+        while(length < MAX_BYTES && (value >>> (7 * length)) != 0)
         {
-            vals[i] |= 0x80;
+            length++;
         }
+        return length;
+    }
 
-        mBytes = new byte[mSizeInBytes];
-        for(int i = 0; i < mSizeInBytes; i++)
-        {
-            mBytes[i] = (byte) vals[mSizeInBytes - i - 1];
-        }
+    private static byte encodedByte(int value, int index, int length)
+    {
+        int shift = 7 * (length - index - 1);
+        int b = (value >> shift) & 0x7F;
+
+        return (byte) (index < length - 1 ? b | 0x80 : b);
     }
 
     @Override
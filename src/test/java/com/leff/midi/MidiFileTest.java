@@ -0,0 +1,172 @@
+//////////////////////////////////////////////////////////////////////////////
+//	Copyright 2011 Alex Leffelman
+//	
+//	Licensed under the Apache License, Version 2.0 (the "License");
+//	you may not use this file except in compliance with the License.
+//	You may obtain a copy of the License at
+//	
+//	http://www.apache.org/licenses/LICENSE-2.0
+//	
+//	Unless required by applicable law or agreed to in writing, software
+//	distributed under the License is distributed on an "AS IS" BASIS,
+//	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//	See the License for the specific language governing permissions and
+//	limitations under the License.
+//////////////////////////////////////////////////////////////////////////////
+
+
+package com.leff.midi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.leff.midi.event.MidiEvent;
+import com.leff.midi.event.NoteOff;
+import com.leff.midi.event.NoteOn;
+import com.leff.midi.event.SystemExclusiveEvent;
+import com.leff.midi.event.meta.EndOfTrack;
+import com.leff.midi.event.meta.Tempo;
+
+/**
+ * Converting between file types moves every event into the new tracks, even
+ * events that several tracks share.
+ */
+public class MidiFileTest
+{
+    @Test
+    public void toFormat0KeepsSharedEvents()
+    {
+        MidiFile file = sharedEventsFile();
+        List<MidiEvent> before = allEvents(file);
+
+        file.toFormat0();
+
+        assertEquals(1, file.getTrackCount());
+        assertSameEvents(before, allEvents(file));
+    }
+
+    @Test
+    public void toFormat1KeepsSharedEvents()
+    {
+        MidiFile file = sharedEventsFile();
+        List<MidiEvent> before = allEvents(file);
+
+        file.toFormat1();
+
+        assertSameEvents(before, allEvents(file));
+    }
+
+    @Test
+    public void roundTripKeepsRandomEvents()
+    {
+        Random random = new Random(19);
+        for(int n = 0; n < 30; n++)
+        {
+            MidiFile file = randomFile(random);
+            List<MidiEvent> before = allEvents(file);
+
+            file.toFormat0();
+            assertSameEvents(before, allEvents(file));
+
+            file.toFormat1();
+            assertSameEvents(before, allEvents(file));
+        }
+    }
+
+    /**
+     * Three tracks that each end a note, and send a SysEx message, on the same
+     * tick.
+     */
+    private static MidiFile sharedEventsFile()
+    {
+        MidiFile file = new MidiFile();
+        file.addTrack(MidiTrack.createTempoTrack());
+        for(int i = 0; i < 3; i++)
+        {
+            MidiTrack T = new MidiTrack();
+            T.insertEvent(new NoteOn(200, 1, 64, 100));
+            T.insertEvent(new NoteOn(246, 1, 64, 0));
+            T.insertEvent(new SystemExclusiveEvent(0xF0, 246, new byte[] { 1, 2, 3 }));
+            file.addTrack(T);
+        }
+        return file;
+    }
+
+    private static MidiFile randomFile(Random random)
+    {
+        MidiFile file = new MidiFile();
+        int trackCount = 2 + random.nextInt(4);
+        for(int t = 0; t < trackCount; t++)
+        {
+            MidiTrack T = new MidiTrack();
+            for(int i = 0; i < 60; i++)
+            {
+                // A few ticks and values, so that tracks collide often
+                long tick = random.nextInt(20) * 12;
+                int channel = random.nextInt(3);
+                int note = 60 + random.nextInt(3);
+                switch(random.nextInt(4))
+                {
+                    case 0:
+                        T.insertEvent(new NoteOn(tick, channel, note, 100));
+                        break;
+                    case 1:
+                        T.insertEvent(new NoteOff(tick, channel, note, 0));
+                        break;
+                    case 2:
+                        T.insertEvent(new SystemExclusiveEvent(0xF0, tick, new byte[] { 1 }));
+                        break;
+                    default:
+                        T.insertEvent(new Tempo(tick, 0, 500000));
+                        break;
+                }
+            }
+            file.addTrack(T);
+        }
+        return file;
+    }
+
+    private static List<MidiEvent> allEvents(MidiFile file)
+    {
+        List<MidiEvent> events = new ArrayList<MidiEvent>();
+        for(MidiTrack T : file.getTracks())
+        {
+            for(MidiEvent E : T.getEvents())
+            {
+                if(!E.getClass().equals(EndOfTrack.class))
+                {
+                    events.add(E);
+                }
+            }
+        }
+        return events;
+    }
+
+    /**
+     * The events are moved, not copied, so each one must turn up exactly
+     * once, on its old tick.
+     */
+    private static void assertSameEvents(List<MidiEvent> expected, List<MidiEvent> actual)
+    {
+        assertEquals(expected.size(), actual.size());
+
+        IdentityHashMap<MidiEvent, Long> ticks = new IdentityHashMap<MidiEvent, Long>();
+        for(MidiEvent E : expected)
+        {
+            ticks.put(E, E.getTick());
+        }
+        for(MidiEvent E : actual)
+        {
+            Long tick = ticks.remove(E);
+            assertTrue("Unexpected event " + E, tick != null);
+            assertEquals(tick.longValue(), E.getTick());
+        }
+    }
+}
@@ -0,0 +1,432 @@
+//////////////////////////////////////////////////////////////////////////////
+//	Copyright 2011 Alex Leffelman
+//	
+//	Licensed under the Apache License, Version 2.0 (the "License");
+//	you may not use this file except in compliance with the License.
+//	You may obtain a copy of the License at
+//	
+//	http://www.apache.org/licenses/LICENSE-2.0
+//	
+//	Unless required by applicable law or agreed to in writing, software
+//	distributed under the License is distributed on an "AS IS" BASIS,
+//	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//	See the License for the specific language governing permissions and
+//	limitations under the License.
+//////////////////////////////////////////////////////////////////////////////
+
+package com.leff.midi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.leff.midi.event.Controller;
+import com.leff.midi.event.MidiEvent;
+import com.leff.midi.event.NoteOff;
+import com.leff.midi.event.NoteOn;
+import com.leff.midi.event.meta.EndOfTrack;
+import com.leff.midi.event.meta.Tempo;
+import com.leff.midi.event.meta.Text;
+import com.leff.midi.event.meta.TimeSignature;
+
+public class MidiTrackTest
+{
+    // Tracks read from a ByteBuffer are decoded the first time their events
+    // are needed. Malformed chunk data must not make those getters throw.
+
+
+    // A note, then a Text event that declares 20 bytes but holds only 2
+    private static final byte[] TRUNCATED_TEXT = { 0, (byte) 0x90, 60, 100, 0, (byte) 0xFF, 0x01, 20, 'h', 'i' };
+
+    // A note, then a second note cut off after its first data byte
+    private static final byte[] TRUNCATED_NOTE = { 0, (byte) 0x90, 60, 100, 0, (byte) 0x90, 61 };
+
+    // A note, then a meta event that ends after its status byte
+    private static final byte[] TRUNCATED_META = { 0, (byte) 0x90, 60, 100, 0, (byte) 0xFF };
+
+    // A SysEx event that declares 30 bytes but holds only 3
+    private static final byte[] TRUNCATED_SYSEX = { 0, (byte) 0xF0, 30, 1, 2, 3 };
+
+    // A note, then a delta time with no event after it
+    private static final byte[] MISSING_EVENT = { 0, (byte) 0x90, 60, 100, 5 };
+
+    // Channel and meta events mixed on two ticks. No event comes right after
+    // one it sorts before, so parsing keeps the file order.
+    private static final byte[] SAME_TICK_EVENTS = {
+            0, (byte) 0x90, 60, 100,
+            0, (byte) 0xFF, 0x51, 3, 0x07, (byte) 0xA1, 0x20,
+            0, (byte) 0x90, 62, 100,
+            0, (byte) 0xFF, 0x01, 1, 'a',
+            0, (byte) 0xB0, 7, 90,
+            0, (byte) 0xFF, 0x58, 4, 4, 2, 24, 8,
+            10, (byte) 0x80, 60, 0,
+            0, (byte) 0xFF, 0x01, 1, 'b',
+            0, (byte) 0x90, 64, 100,
+            0, (byte) 0x80, 62, 0,
+            0, (byte) 0xFF, 0x2F, 0 };
+
+    private static final Class<?>[] SAME_TICK_TYPES = {
+            NoteOn.class, Tempo.class, NoteOn.class, Text.class, Controller.class, TimeSignature.class,
+            NoteOff.class, Text.class, NoteOn.class, NoteOff.class };
+
+    @Test
+    public void truncatedTextEvent() throws IOException
+    {
+        assertDecodes(TRUNCATED_TEXT, 2, 0);
+    }
+
+    @Test
+    public void truncatedChannelEvent() throws IOException
+    {
+        assertDecodes(TRUNCATED_NOTE, 2, 0);
+    }
+
+    @Test
+    public void truncatedMetaEvent() throws IOException
+    {
+        assertDecodes(TRUNCATED_META, 2, 0);
+    }
+
+    @Test
+    public void truncatedSysexEvent() throws IOException
+    {
+        assertDecodes(TRUNCATED_SYSEX, 1, 0);
+    }
+
+    @Test
+    public void missingEvent() throws IOException
+    {
+        assertDecodes(MISSING_EVENT, 2, 5);
+    }
+
+    @Test
+    public void chunkLongerThanFile() throws IOException
+    {
+        byte[] file = buildFile(TRUNCATED_NOTE);
+
+        // Claim more data than the file holds
+        file[MidiFile.HEADER_SIZE + 7] = 100;
+
+        assertEquals(2, lazyTrack(file).getEventCount());
+    }
+
+    @Test
+    public void parseKeepsSameTickOrder() throws IOException
+    {
+        byte[] file = buildFile(SAME_TICK_EVENTS);
+
+        assertParsedInFileOrder(new MidiFile(new ByteArrayInputStream(file)).getTracks().get(0), file);
+        assertParsedInFileOrder(lazyTrack(file), file);
+    }
+
+    @Test
+    public void parseSortsRunsOfChannelEvents() throws IOException
+    {
+        // Two notes on one tick, the higher one first
+        byte[] file = buildFile(new byte[] { 0, (byte) 0x90, 67, 100, 0, (byte) 0x90, 65, 100 });
+
+        for(MidiTrack T : new MidiTrack[] { new MidiFile(new ByteArrayInputStream(file)).getTracks().get(0), lazyTrack(file) })
+        {
+            Iterator<MidiEvent> it = T.getEvents().iterator();
+            assertEquals(65, ((NoteOn) it.next()).getNoteValue());
+            assertEquals(67, ((NoteOn) it.next()).getNoteValue());
+        }
+    }
+
+    private static void assertParsedInFileOrder(MidiTrack T, byte[] file) throws IOException
+    {
+        assertEquals(SAME_TICK_TYPES.length, T.getEventCount());
+
+        Iterator<MidiEvent> it = T.getEvents().iterator();
+        for(Class<?> type : SAME_TICK_TYPES)
+        {
+            assertSame(type, it.next().getClass());
+        }
+
+        // Written back unchanged
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        T.writeToFile(out);
+        byte[] written = out.toByteArray();
+        assertEquals(file.length - MidiFile.HEADER_SIZE, written.length);
+        for(int i = 0; i < written.length; i++)
+        {
+            assertEquals(file[MidiFile.HEADER_SIZE + i], written[i]);
+        }
+    }
+
+    @Test
+    public void sizeFollowsInsertAndRemove() throws IOException
+    {
+        Random random = new Random(15);
+        MidiTrack T = MidiTrack.createTempoTrack();
+        List<MidiEvent> live = new ArrayList<MidiEvent>();
+
+        for(int i = 0; i < 2000; i++)
+        {
+            if(live.isEmpty() || random.nextInt(3) > 0)
+            {
+                MidiEvent E = randomEvent(random);
+                T.insertEvent(E);
+                live.add(E);
+            }
+            else
+            {
+                T.removeEvent(live.remove(random.nextInt(live.size())));
+            }
+            assertSize(T);
+        }
+    }
+
+    @Test
+    public void sizeFollowsDeferredEdits() throws IOException
+    {
+        Random random = new Random(16);
+        MidiTrack T = new MidiTrack();
+        List<MidiEvent> live = new ArrayList<MidiEvent>();
+
+        for(int round = 0; round < 20; round++)
+        {
+            T.setDeferDeltas(true);
+            for(int i = 0; i < 50; i++)
+            {
+                if(live.isEmpty() || random.nextInt(3) > 0)
+                {
+                    MidiEvent E = randomEvent(random);
+                    T.insertEvent(E);
+                    live.add(E);
+                }
+                else
+                {
+                    T.removeEvent(live.remove(random.nextInt(live.size())));
+                }
+            }
+
+            // Alternate between asking while deferred and after turning it
+            // off
+            if(round % 2 == 1)
+            {
+                T.setDeferDeltas(false);
+            }
+            assertSize(T);
+        }
+    }
+
+    @Test
+    public void sizeFollowsEditsToParsedTrack() throws IOException
+    {
+        byte[] file = buildFile(SAME_TICK_EVENTS);
+
+        MidiTrack T = lazyTrack(file);
+        T.insertEvent(new NoteOn(5, 0, 61, 100));
+        assertSize(T);
+
+        T.removeEvent(T.getEvents().first());
+        assertSize(T);
+    }
+
+    /**
+     * Asks for the size before anything else can bring the track up to date,
+     * then writes the events as writeToFile() would, without closing the
+     * track.
+     */
+    private static void assertSize(MidiTrack T) throws IOException
+    {
+        int size = T.getSize();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MidiEvent last = null;
+        long lastTick = 0;
+        for(MidiEvent E : T.getEvents())
+        {
+            assertEquals(E.getTick() - lastTick, E.getDelta());
+            E.writeToFile(out, E.requiresStatusByte(last));
+            lastTick = E.getTick();
+            last = E;
+        }
+        assertEquals(out.size(), size);
+    }
+
+    private static MidiEvent randomEvent(Random random)
+    {
+        long tick = random.nextInt(500);
+        int channel = random.nextInt(2);
+        switch(random.nextInt(4))
+        {
+            case 0:
+                return new NoteOn(tick, channel, random.nextInt(128), random.nextInt(128));
+            case 1:
+                return new NoteOff(tick, channel, random.nextInt(128), 0);
+            case 2:
+                return new Controller(tick, channel, random.nextInt(3), random.nextInt(128));
+            default:
+                return new Text(tick, 0, "text " + random.nextInt(300));
+        }
+    }
+
+    @Test
+    public void insertEventsMatchesInsertEvent()
+    {
+        Random random = new Random(12);
+        for(int n = 0; n < 500; n++)
+        {
+            long seed = random.nextLong();
+            MidiTrack bulk = randomTrack(new Random(seed));
+            MidiTrack single = randomTrack(new Random(seed));
+
+            // The same batch for each track, duplicates included
+            List<MidiEvent> batch = randomChannelEvents(new Random(~seed), 20);
+            bulk.insertEvents(batch);
+            for(MidiEvent E : randomChannelEvents(new Random(~seed), 20))
+            {
+                single.insertEvent(E);
+            }
+
+            assertEquals(single.getEventCount(), bulk.getEventCount());
+            assertEquals(single.getSize(), bulk.getSize());
+
+            Iterator<MidiEvent> expected = single.getEvents().iterator();
+            for(MidiEvent E : bulk.getEvents())
+            {
+                MidiEvent other = expected.next();
+                assertEquals(other.getTick(), E.getTick());
+                assertEquals(other.getDelta(), E.getDelta());
+                assertEquals(0, other.compareTo(E));
+            }
+        }
+    }
+
+    @Test
+    public void insertEventsChecksEndOfTrackFirst()
+    {
+        MidiTrack T = randomTrack(new Random(5));
+        long[] deltas = deltas(T);
+
+        NoteOn late = new NoteOn(1000, 0, 60, 100);
+        List<MidiEvent> batch = new ArrayList<MidiEvent>();
+        batch.add(late);
+        batch.add(new EndOfTrack(500, 0));
+        try
+        {
+            T.insertEvents(batch);
+            fail("EndOfTrack before another event was inserted");
+        }
+        catch(IllegalArgumentException e)
+        {
+            // Expected
+        }
+
+        assertEquals(deltas.length, T.getEventCount());
+        long[] after = deltas(T);
+        for(int i = 0; i < deltas.length; i++)
+        {
+            assertEquals(deltas[i], after[i]);
+        }
+        assertEquals(0, late.getDelta());
+    }
+
+    private static MidiTrack randomTrack(Random random)
+    {
+        MidiTrack T = new MidiTrack();
+        for(MidiEvent E : randomChannelEvents(random, 10))
+        {
+            T.insertEvent(E);
+        }
+        return T;
+    }
+
+    /**
+     * Channel events on a few ticks with a few values, so that many share a
+     * tick and some are equal.
+     */
+    private static List<MidiEvent> randomChannelEvents(Random random, int count)
+    {
+        List<MidiEvent> events = new ArrayList<MidiEvent>(count);
+        for(int i = 0; i < count; i++)
+        {
+            long tick = random.nextInt(8) * 10;
+            int value = 60 + random.nextInt(3);
+            switch(random.nextInt(3))
+            {
+                case 0:
+                    events.add(new NoteOn(tick, 0, value, 100));
+                    break;
+                case 1:
+                    events.add(new NoteOff(tick, 0, value, 0));
+                    break;
+                default:
+                    events.add(new Controller(tick, 0, value, 1));
+                    break;
+            }
+        }
+        return events;
+    }
+
+    private static long[] deltas(MidiTrack T)
+    {
+        long[] deltas = new long[T.getEventCount()];
+        int i = 0;
+        for(MidiEvent E : T.getEvents())
+        {
+            deltas[i++] = E.getDelta();
+        }
+        return deltas;
+    }
+
+    /**
+     * Checks each getter on a track that hasn't been decoded yet, since only
+     * the first one to run does the decoding. The stream reader has to agree.
+     */
+    private static void assertDecodes(byte[] data, int eventCount, long lengthInTicks) throws IOException
+    {
+        byte[] file = buildFile(data);
+
+        assertEquals(eventCount, lazyTrack(file).getEventCount());
+        assertEquals(eventCount, lazyTrack(file).getEvents().size());
+        assertEquals(lengthInTicks, lazyTrack(file).getLengthInTicks());
+
+        lazyTrack(file).writeToFile(new ByteArrayOutputStream());
+
+        MidiTrack streamed = new MidiFile(new ByteArrayInputStream(file)).getTracks().get(0);
+        assertEquals(eventCount, streamed.getEventCount());
+
+        MidiEvent[] expected = streamed.getEvents().toArray(new MidiEvent[0]);
+        MidiEvent[] actual = lazyTrack(file).getEvents().toArray(new MidiEvent[0]);
+        for(int i = 0; i < eventCount; i++)
+        {
+            assertEquals(expected[i].toString(), actual[i].toString());
+        }
+    }
+
+    private static MidiTrack lazyTrack(byte[] file)
+    {
+        return new MidiFile(ByteBuffer.wrap(file)).getTracks().get(0);
+    }
+
+    private static byte[] buildFile(byte[] trackData)
+    {
+        ByteBuffer file = ByteBuffer.allocate(MidiFile.HEADER_SIZE + 8 + trackData.length);
+
+        file.put(MidiFile.IDENTIFIER);
+        file.putInt(6);
+        file.putShort((short) 0);
+        file.putShort((short) 1);
+        file.putShort((short) MidiFile.DEFAULT_RESOLUTION);
+
+        file.put(MidiTrack.IDENTIFIER);
+        file.putInt(trackData.length);
+        file.put(trackData);
+
+        return file.array();
+    }
+}
@@ -0,0 +1,95 @@
+//////////////////////////////////////////////////////////////////////////////
+//	Copyright 2011 Alex Leffelman
+//	
+//	Licensed under the Apache License, Version 2.0 (the "License");
+//	you may not use this file except in compliance with the License.
+//	You may obtain a copy of the License at
+//	
+//	http://www.apache.org/licenses/LICENSE-2.0
+//	
+//	Unless required by applicable law or agreed to in writing, software
+//	distributed under the License is distributed on an "AS IS" BASIS,
+//	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//	See the License for the specific language governing permissions and
+//	limitations under the License.
+//////////////////////////////////////////////////////////////////////////////
+
+
+package com.leff.midi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import com.leff.midi.event.MidiEvent;
+import com.leff.midi.event.NoteOn;
+import com.leff.midi.event.meta.Tempo;
+
+/**
+ * A packed track stores no event objects, so the objects it hands out and
+ * the ones it is given can be changed without changing the track.
+ */
+public class PackedMidiTrackTest
+{
+    @Test
+    public void getEventReturnsNewObjects()
+    {
+        PackedMidiTrack packed = new PackedMidiTrack();
+        packed.add(new NoteOn(0, 0, 60, 100));
+        packed.add(new Tempo(10, 0, 500000));
+
+        Tempo tempo = (Tempo) packed.getEvent(1);
+        assertTrue(tempo != packed.getEvent(1));
+
+        tempo.setMpqn(250000);
+        assertEquals(500000, ((Tempo) packed.getEvent(1)).getMpqn());
+        assertEquals(10, packed.getEvent(1).getTick());
+    }
+
+    @Test
+    public void addedEventsAreCopied()
+    {
+        Tempo tempo = new Tempo(10, 0, 500000);
+        MidiTrack track = new MidiTrack();
+        track.insertEvent(new NoteOn(0, 0, 60, 100));
+        track.insertEvent(tempo);
+
+        PackedMidiTrack packed = PackedMidiTrack.fromTrack(track);
+        tempo.setMpqn(250000);
+        assertEquals(500000, ((Tempo) packed.getEvent(1)).getMpqn());
+
+        // The track built from it doesn't share objects with it either
+        MidiTrack copy = packed.toTrack();
+        Tempo copied = (Tempo) copy.getEvents().last();
+        copied.setMpqn(1000000);
+        assertEquals(500000, ((Tempo) packed.getEvent(1)).getMpqn());
+    }
+
+    @Test
+    public void sizeMatchesWrittenBytes()
+    {
+        PackedMidiTrack packed = new PackedMidiTrack();
+        for(int i = 0; i < 20; i++)
+        {
+            packed.add(new NoteOn(i * 10, 0, 60 + i, 100));
+            packed.add(new Tempo(i * 10 + 5, 0, 400000 + i));
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(packed.getSize() + 8);
+        packed.writeToBuffer(out);
+        assertEquals(out.capacity(), out.position());
+
+        PackedMidiTrack read = new PackedMidiTrack((ByteBuffer) out.flip());
+        assertEquals(packed.getEventCount(), read.getEventCount());
+        for(int i = 0; i < packed.getEventCount(); i++)
+        {
+            MidiEvent expected = packed.getEvent(i);
+            MidiEvent actual = read.getEvent(i);
+            assertEquals(expected.getTick(), actual.getTick());
+            assertEquals(0, expected.compareTo(actual));
+        }
+    }
+}
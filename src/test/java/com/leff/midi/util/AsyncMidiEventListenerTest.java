@@ -0,0 +1,201 @@
+//////////////////////////////////////////////////////////////////////////////
+//	Copyright 2011 Alex Leffelman
+//	
+//	Licensed under the Apache License, Version 2.0 (the "License");
+//	you may not use this file except in compliance with the License.
+//	You may obtain a copy of the License at
+//	
+//	http://www.apache.org/licenses/LICENSE-2.0
+//	
+//	Unless required by applicable law or agreed to in writing, software
+//	distributed under the License is distributed on an "AS IS" BASIS,
+//	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//	See the License for the specific language governing permissions and
+//	limitations under the License.
+//////////////////////////////////////////////////////////////////////////////
+
+
+package com.leff.midi.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.leff.midi.event.MidiEvent;
+import com.leff.midi.event.NoteOn;
+import com.leff.midi.util.AsyncMidiEventListener.OverflowPolicy;
+
+/**
+ * The overflow tests hold the listener in an onEvent() callback while the
+ * buffer fills, so that what overflows doesn't depend on thread timing.
+ */
+public class AsyncMidiEventListenerTest
+{
+    @Test
+    public void deliversInOrder() throws InterruptedException
+    {
+        Recorder recorder = new Recorder();
+        AsyncMidiEventListener async = start(recorder, 64, OverflowPolicy.BLOCK);
+
+        async.onStart(true);
+        for(int i = 0; i < 5000; i++)
+        {
+            async.onEvent(new NoteOn(i, 0, 60, 100), i);
+        }
+        async.onStop(true);
+        finish(async);
+
+        assertEquals(5002, recorder.mCalls.size());
+        assertEquals("start", recorder.mCalls.get(0));
+        for(int i = 0; i < 5000; i++)
+        {
+            assertEquals("event " + i, recorder.mCalls.get(i + 1));
+        }
+        assertEquals("stop", recorder.mCalls.get(5001));
+        assertEquals(0, async.getDroppedCount());
+    }
+
+    @Test
+    public void dropDiscardsWhatDoesNotFit() throws InterruptedException
+    {
+        Recorder recorder = new Recorder();
+        AsyncMidiEventListener async = start(recorder, 4, OverflowPolicy.DROP);
+
+        holdFirstEvent(async, recorder);
+        for(int i = 1; i <= 10; i++)
+        {
+            async.onEvent(new NoteOn(i, 0, 60, 100), i);
+        }
+        recorder.mRelease.countDown();
+        finish(async);
+
+        assertEquals(6, async.getDroppedCount());
+        assertEquals(calls("event 0", "event 1", "event 2", "event 3", "event 4"), recorder.mCalls);
+    }
+
+    @Test
+    public void coalesceKeepsLatestBeforeStop() throws InterruptedException
+    {
+        Recorder recorder = new Recorder();
+        AsyncMidiEventListener async = start(recorder, 2, OverflowPolicy.COALESCE);
+
+        async.onStart(true);
+        holdFirstEvent(async, recorder);
+        for(int i = 1; i <= 10; i++)
+        {
+            async.onEvent(new NoteOn(i, 0, 60, 100), i);
+        }
+        recorder.mRelease.countDown();
+
+        // Waits for the coalesced event, so it still comes before the stop
+        async.onStop(false);
+        finish(async);
+
+        assertEquals(7, async.getDroppedCount());
+        assertEquals(calls("start", "event 0", "event 1", "event 2", "event 10", "stop"), recorder.mCalls);
+    }
+
+    @Test
+    public void closeIgnoresLaterCallbacks() throws InterruptedException
+    {
+        Recorder recorder = new Recorder();
+        AsyncMidiEventListener async = start(recorder, 8, OverflowPolicy.DROP);
+
+        async.onEvent(new NoteOn(0, 0, 60, 100), 0);
+        finish(async);
+        async.onEvent(new NoteOn(1, 0, 60, 100), 1);
+        async.onStop(true);
+
+        assertEquals(calls("event 0"), recorder.mCalls);
+    }
+
+    /**
+     * Records the callbacks by their ms values. Once mHold is set, the next
+     * onEvent() signals mHeld and waits for mRelease.
+     */
+    private static class Recorder implements MidiEventListener
+    {
+        final List<String> mCalls = new ArrayList<String>();
+        final CountDownLatch mHeld = new CountDownLatch(1);
+        final CountDownLatch mRelease = new CountDownLatch(1);
+        volatile boolean mHold;
+        Thread mThread;
+
+        public void onStart(boolean fromBeginning)
+        {
+            mCalls.add("start");
+        }
+
+        public void onEvent(MidiEvent event, long ms)
+        {
+            if(mHold)
+            {
+                mHold = false;
+                mHeld.countDown();
+                try
+                {
+                    mRelease.await();
+                }
+                catch(InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            mCalls.add("event " + ms);
+        }
+
+        public void onStop(boolean finished)
+        {
+            mCalls.add("stop");
+        }
+    }
+
+    private static AsyncMidiEventListener start(final Recorder recorder, int capacity, OverflowPolicy policy)
+    {
+        return new AsyncMidiEventListener(recorder, capacity, policy, new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                recorder.mThread = new Thread(r);
+                recorder.mThread.setDaemon(true);
+                return recorder.mThread;
+            }
+        });
+    }
+
+    private static void holdFirstEvent(AsyncMidiEventListener async, Recorder recorder) throws InterruptedException
+    {
+        recorder.mHold = true;
+        async.onEvent(new NoteOn(0, 0, 60, 100), 0);
+        assertEquals(true, recorder.mHeld.await(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Closes the wrapper and waits until everything queued was delivered.
+     * The thread's end makes the recorded calls visible here.
+     */
+    private static void finish(AsyncMidiEventListener async) throws InterruptedException
+    {
+        Recorder recorder = (Recorder) async.getListener();
+        recorder.mRelease.countDown();
+        async.close();
+        recorder.mThread.join(5000);
+        assertEquals(false, recorder.mThread.isAlive());
+    }
+
+    private static List<String> calls(String... calls)
+    {
+        List<String> list = new ArrayList<String>();
+        for(String call : calls)
+        {
+            list.add(call);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,125 @@
+//////////////////////////////////////////////////////////////////////////////
+//	Copyright 2011 Alex Leffelman
+//	
+//	Licensed under the Apache License, Version 2.0 (the "License");
+//	you may not use this file except in compliance with the License.
+//	You may obtain a copy of the License at
+//	
+//	http://www.apache.org/licenses/LICENSE-2.0
+//	
+//	Unless required by applicable law or agreed to in writing, software
+//	distributed under the License is distributed on an "AS IS" BASIS,
+//	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//	See the License for the specific language governing permissions and
+//	limitations under the License.
+//////////////////////////////////////////////////////////////////////////////
+
+
+package com.leff.midi.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.leff.midi.MidiFile;
+import com.leff.midi.MidiTrack;
+import com.leff.midi.event.NoteOn;
+import com.leff.midi.event.meta.Tempo;
+
+public class TempoMapTest
+{
+    private static final int RESOLUTION = 480;
+
+    @Test
+    public void convertsAcrossTempoChanges()
+    {
+        // 120 bpm, then 240 bpm from the third beat
+        TempoMap map = new TempoMap(RESOLUTION, tempos(new Tempo(0, 0, 500000), new Tempo(960, 0, 250000)));
+
+        assertEquals(0, map.ticksToMicros(0));
+        assertEquals(500000, map.ticksToMicros(480));
+        assertEquals(1000000, map.ticksToMicros(960));
+        assertEquals(1250000, map.ticksToMicros(1440));
+        assertEquals(1250, map.ticksToMs(1440));
+        assertEquals(1125000.0, map.ticksToMicros(1200.0), 1e-6);
+
+        assertEquals(250000, map.getMpqnAt(960));
+        assertEquals(500000, map.getMpqnAt(959));
+    }
+
+    @Test
+    public void defaultTempoBeforeFirstChange()
+    {
+        TempoMap map = new TempoMap(RESOLUTION, tempos(new Tempo(480, 0, 1000000)));
+
+        assertEquals(Tempo.DEFAULT_MPQN, map.getMpqnAt(0));
+        assertEquals(Tempo.DEFAULT_MPQN, map.ticksToMicros(480));
+        assertEquals(Tempo.DEFAULT_MPQN + 1000000, map.ticksToMicros(960));
+    }
+
+    @Test
+    public void lastTempoOnATickWins()
+    {
+        TempoMap map = new TempoMap(RESOLUTION, tempos(new Tempo(960, 0, 300000), new Tempo(0, 0, 500000), new Tempo(960, 0, 250000)));
+
+        assertEquals(2, map.getSegmentCount());
+        assertEquals(250000, map.getMpqnAt(960));
+        assertEquals(1250000, map.ticksToMicros(1440));
+    }
+
+    @Test
+    public void microsToTicksInvertsTicksToMicros()
+    {
+        TempoMap map = new TempoMap(RESOLUTION, tempos(new Tempo(0, 0, 500000), new Tempo(700, 0, 333333), new Tempo(1500, 0, 1200000)));
+
+        for(long tick = 0; tick < 3000; tick += 7)
+        {
+            assertEquals(tick, map.microsToTicks(map.ticksToMicros(tick)), 0.01);
+        }
+        assertEquals(480.0, map.msToTicks(500), 1e-9);
+    }
+
+    @Test
+    public void batchConversionMatchesSingleConversions()
+    {
+        TempoMap map = new TempoMap(RESOLUTION, tempos(new Tempo(0, 0, 500000), new Tempo(960, 0, 250000), new Tempo(2000, 0, 750000)));
+
+        // Ascending runs broken by jumps back
+        long[] ticks = { 0, 100, 960, 3000, 5, 1440, 2000, 2001, 480, 480, 10000, 0 };
+        long[] micros = new long[ticks.length];
+        map.ticksToMicros(ticks, micros);
+
+        for(int i = 0; i < ticks.length; i++)
+        {
+            assertEquals(map.ticksToMicros(ticks[i]), micros[i]);
+        }
+    }
+
+    @Test
+    public void collectsTemposFromEveryTrack()
+    {
+        MidiTrack tempoTrack = new MidiTrack();
+        tempoTrack.insertEvent(new Tempo(0, 0, 500000));
+
+        MidiTrack notes = new MidiTrack();
+        notes.insertEvent(new NoteOn(0, 0, 60, 100));
+        notes.insertEvent(new Tempo(960, 0, 250000));
+
+        MidiFile file = new MidiFile(RESOLUTION);
+        file.addTrack(tempoTrack);
+        file.addTrack(notes);
+
+        TempoMap map = new TempoMap(file);
+        assertEquals(2, map.getSegmentCount());
+        assertEquals(1250000, map.ticksToMicros(1440));
+    }
+
+    private static List<Tempo> tempos(Tempo... tempos)
+    {
+        return new ArrayList<Tempo>(Arrays.asList(tempos));
+    }
+}